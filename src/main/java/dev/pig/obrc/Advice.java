@@ -0,0 +1,141 @@
+package dev.pig.obrc;
+
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static dev.pig.obrc.Memory.UNSAFE;
+
+// Advice passes paging hints for the mapped input to the kernel with madvise, called through the Foreign
+// Function API, and prefetches the segments a worker has claimed on a helper thread. Every page the parser
+// touches first would otherwise cost it a page fault, the helper takes those faults while the worker parses.
+// Hints are best effort, one the kernel or file system does not support is ignored.
+final class Advice {
+
+    // Linux advice values, the same on x86_64 and aarch64
+    private static final int MADV_SEQUENTIAL = 2;
+    private static final int MADV_WILLNEED = 3;
+    private static final int MADV_HUGEPAGE = 14;
+    // Maps the pages into the process as if read, since Linux 5.14
+    private static final int MADV_POPULATE_READ = 22;
+
+    private static final MethodHandle MADVISE = Linker.nativeLinker().downcallHandle(
+            Linker.nativeLinker().defaultLookup().find("madvise").orElseThrow(),
+            FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT));
+
+    private static final long PAGE_SIZE = UNSAFE.pageSize();
+
+    // Marks the end of the segments to prefetch
+    private static final long END = -1;
+
+    // Keeps the loads of touched pages from being optimised away
+    private static volatile long sink;
+
+    private Advice() {}
+
+    // mapped hints that the whole mapping is read front to back once, and asks for huge pages where supported.
+    static void mapped(final long base, final long size) {
+        if (size > 0) {
+            madvise(base, base + size, MADV_SEQUENTIAL);
+            madvise(base, base + size, MADV_HUGEPAGE);
+        }
+    }
+
+    // populate faults the pages between the two addresses into the process ahead of the parser.
+    // Kernels before MADV_POPULATE_READ start reading them in and the pages are touched one by one.
+    static void populate(final long start, final long end) {
+        if (madvise(start, end, MADV_POPULATE_READ) == 0) {
+            return;
+        }
+
+        madvise(start, end, MADV_WILLNEED);
+        long sum = 0;
+        for (long page = start & -PAGE_SIZE; page < end; page += PAGE_SIZE) {
+            sum += UNSAFE.getByte(page);
+        }
+        sink = sum;
+    }
+
+    // madvise applies the advice to the pages holding the addresses between start and end, returning 0 on success.
+    private static int madvise(final long start, final long end, final int advice) {
+        final long page = start & -PAGE_SIZE;
+        try {
+            return (int) MADVISE.invokeExact(MemorySegment.ofAddress(page), end - page, advice);
+        } catch (final Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // process parses the segments of the mapped file claimed from the cursor, as schedule does, but claims
+    // distance segments ahead of the one being parsed. A helper thread populates each as it is claimed.
+    // The helper is joined before returning, so it never touches the mapping after it is unmapped, and its
+    // failure is thrown here.
+    static void process(final StationArrayMap stations, final long base, final long size, final long segmentSize,
+                        final AtomicLong cursor, final long segmentCount, final int distance) {
+        final BlockingQueue<Long> ahead = new LinkedBlockingQueue<>();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread helper = Thread.ofPlatform().daemon().name("obrc-prefetch").start(() -> {
+            try {
+                long segment;
+                while ((segment = ahead.take()) != END) {
+                    populate(base + segment * segmentSize, Math.min(base + size, base + (segment + 1) * segmentSize));
+                }
+            } catch (final Throwable e) {
+                failure.set(e);
+            }
+        });
+
+        final ArrayDeque<Long> claimed = new ArrayDeque<>(distance + 1);
+        try {
+            while (true) {
+                while (claimed.size() <= distance) {
+                    final long segment = cursor.getAndIncrement();
+                    if (segment >= segmentCount) {
+                        break;
+                    }
+                    claimed.add(segment);
+                    ahead.add(segment);
+                }
+
+                final Long segment = claimed.poll();
+                if (segment == null) {
+                    break;
+                }
+                final long start = CalculateAverage.lineStart(base, base + size, base + segment * segmentSize);
+                final long end = CalculateAverage.lineStart(base, base + size, base + (segment + 1) * segmentSize);
+                CalculateAverage.process(stations, start, end);
+            }
+        } finally {
+            ahead.add(END);
+            join(helper);
+        }
+
+        if (failure.get() != null) {
+            throw new IllegalStateException("Prefetching failed", failure.get());
+        }
+    }
+
+    // join waits for the thread to finish, keeping the interrupt status if interrupted while waiting.
+    private static void join(final Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -2,6 +2,8 @@ package dev.pig.obrc;
 
 import dev.pig.obrc.pipeline.Calculate_baseline;
 import dev.pig.obrc.pipeline.Generate;
+import dev.pig.obrc.pipeline.PrefetchBenchmark;
+import dev.pig.obrc.pipeline.StartupBenchmark;
 import dev.pig.obrc.pipeline.Validate;
 
 import java.nio.file.Files;
@@ -16,6 +18,17 @@ public class Benchmark {
     private static final int ROWS = 1_000_000_000;
 
     public static void main(final String[] args) throws Exception {
+        // Time to last output byte of whole launches, default against the AppCDS startup launch
+        if (args.length >= 1 && args[0].equals("startup")) {
+            StartupBenchmark.run();
+            return;
+        }
+        // Wall time and page faults of the input with and without madvise hints and prefetching
+        if (args.length >= 1 && args[0].equals("prefetch")) {
+            PrefetchBenchmark.run(INPUT, args.length >= 2 && args[1].equals("cold"));
+            return;
+        }
+
         // Generate input
         Generate.createMeasurementsIfNotExists(ROWS, INPUT);
 
@@ -1,315 +1,602 @@
 package dev.pig.obrc;
 
-import sun.misc.Unsafe;
-
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.lang.reflect.Field;
-import java.nio.Buffer;
-import java.nio.MappedByteBuffer;
+import java.io.InputStream;
+import java.lang.foreign.Arena;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.function.BiConsumer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static dev.pig.obrc.Memory.UNSAFE;
 
 public class CalculateAverage {
 
     private static final String INPUT = "./measurements.txt";
-
-    public static void main(final String[] args) throws IOException {
+    // Input name that reads the measurements from stdin instead of a file
+    private static final String STDIN = "-";
+
+    // Number of worker threads claiming segments of the file.
+    static final int WORKERS = Integer.getInteger("obrc.workers", Runtime.getRuntime().availableProcessors());
+    // Nominal size of each segment in bytes, the real boundaries are moved forward to the next line start.
+    static final long SEGMENT_SIZE = Long.getLong("obrc.segmentSize", 4L << 20);
+    // Delimiter scan, "swar" scans 8 bytes at a time and "vector" the widest the CPU supports, if 256 bits or more.
+    private static final boolean VECTOR_SCAN = vectorScan(System.getProperty("obrc.scanner", "swar"));
+    // Number of cursors each worker advances in lockstep through its segment, 1 parses one line at a time and 2 a line
+    // of each half.
+    private static final int CURSORS = cursors(Integer.getInteger("obrc.cursors", 1));
+    // Temperature decoder, "swar" decodes with a single 8 byte load and "scalar" byte by byte.
+    static final TemperatureDecoder DECODER = TemperatureDecoder.of(System.getProperty("obrc.decoder", "swar"));
+    // Percentiles added to the output of each station, e.g. "50,95,99".
+    static final double[] PERCENTILES = percentiles(System.getProperty("obrc.percentiles", ""));
+    // How percentiles are kept, "exact" with a histogram per station and "sketch" with a DDSketch per station.
+    static final byte QUANTILES = quantiles(System.getProperty("obrc.quantiles", "exact"));
+    // Station table of the workers, "private" per worker and merged, "shared" by every worker, "auto" shared when the
+    // file is estimated to hold many stations.
+    private static final byte TABLE = table(System.getProperty("obrc.table", "auto"));
+    // Estimated stations from which auto shares the table, past it each worker's own map outgrows the cache
+    private static final long SHARED_STATIONS = 1 << 16;
+    // Pass paging hints for the mapping to the kernel and prefetch claimed segments on a helper thread per worker.
+    private static final boolean MADVISE = Boolean.getBoolean("obrc.madvise");
+    // Number of segments each worker claims ahead of the one it parses, for its helper to prefetch.
+    private static final int PREFETCH_DISTANCE = Math.max(1, Integer.getInteger("obrc.prefetchDistance", 2));
+    // Cap on the bytes of the file mapped at once, when set the file is read in windows released once parsed.
+    private static final long MAX_MAPPED = Long.getLong("obrc.maxMapped", 0);
+    // Run the work in a spawned copy of the process, so the output is not held up by unmapping and JVM shutdown.
+    private static final boolean SPAWN_WORKER = Boolean.getBoolean("obrc.spawnWorker");
+
+    // Follow the input as it is appended to, publishing the result every interval in milliseconds.
+    private static final boolean FOLLOW = Boolean.getBoolean("obrc.follow");
+    private static final long FOLLOW_INTERVAL = Long.getLong("obrc.followInterval", 500);
+
+    // Sidecar checkpoint file, when set only input appended since the last run is parsed.
+    private static final String CHECKPOINT = System.getProperty("obrc.checkpoint");
+
+    // Local worker processes to shard the file across, the port to also take workers on and the address to listen on,
+    // loopback unless set to take workers from other hosts.
+    private static final int SHARDS = Integer.getInteger("obrc.shards", 0);
+    private static final int COORDINATOR_PORT = Integer.getInteger("obrc.coordinatorPort", -1);
+    private static final String COORDINATOR_BIND = System.getProperty("obrc.coordinatorBind");
+    // Milliseconds the coordinator waits for a worker's reply before reassigning its range.
+    private static final int WORKER_TIMEOUT = Integer.getInteger("obrc.workerTimeout", 60_000);
+    // Size in bytes of the ranges handed to worker processes.
+    private static final long SHARD_SIZE = Long.getLong("obrc.shardSize", 64L << 20);
+    // Host and port of the coordinator to run as a worker for.
+    private static final String COORDINATOR = System.getProperty("obrc.coordinator");
+
+    private static final byte TABLE_AUTO = 0;
+    private static final byte TABLE_PRIVATE = 1;
+    private static final byte TABLE_SHARED = 2;
+
+    // Set in the environment of the spawned worker
+    private static final String WORKER_ENV = "OBRC_WORKER";
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
         final String input = args.length >= 1 ? args[0] : INPUT;
 
-        System.out.println(run(input));
-    }
+        final String coordinator = System.getenv().getOrDefault(Cluster.COORDINATOR_ENV, COORDINATOR);
+        if (coordinator != null) {
+            Cluster.work(coordinator);
+            return;
+        }
 
-    public static String run(final String input) throws IOException {
-        final List<StationArrayMap> chunks = chunkify(input).parallelStream()
-                .map(CalculateAverage::processChunk)
-                .toList();
+        if (System.getenv(WORKER_ENV) != null) {
+            // Hand the result to the parent before the mapping is released, the parent exits once stdout closes
+            run(input, stations -> {
+                print(stations);
+                System.out.close();
+            });
+            return;
+        }
+
+        if (FOLLOW) {
+            Tail.follow(input, FOLLOW_INTERVAL, System.out::println);
+            return;
+        }
 
-        for (int i = 1; i < chunks.size(); i++) {
-            chunks.getFirst().merge(chunks.get(i));
+        if (SPAWN_WORKER) {
+            System.exit(spawnWorker());
         }
-        final TreeMap<ByteSpan, Station> sorted = new TreeMap<>();
-        chunks.getFirst().forEach(sorted::put);
 
-        return sorted.toString();
+        run(input, CalculateAverage::print);
     }
 
-    // chunkify takes a filename and splits it into a list of MappedByteBuffers.
-    private static List<MappedByteBuffer> chunkify(final String filename) throws IOException {
-        final RandomAccessFile file = new RandomAccessFile(filename, "r");
+    public static String run(final String input) throws IOException {
+        final String[] result = new String[1];
+        run(input, stations -> result[0] = format(stations));
+        return result[0];
+    }
 
-        final long processorCount = Runtime.getRuntime().availableProcessors();
-        final long fileSize = file.length();
-        final long chunkSize = Math.min(Integer.MAX_VALUE - 1000, fileSize / processorCount);
-        final int chunkCount =  (int) (fileSize / chunkSize) + 1;
+    // run calculates the map of every station and passes it to the consumer before the mapping is released.
+    private static void run(final String input, final Consumer<StationArrayMap> consumer) throws IOException {
+        if (input.equals(STDIN)) {
+            // A pipe cannot be mapped or split, it is read front to back through a ring of buffers
+            final FileChannel channel = new FileInputStream(FileDescriptor.in).getChannel();
+            consumer.accept(merge(StreamParser.parse(channel::read, SEGMENT_SIZE)));
+            return;
+        }
 
-        final List<MappedByteBuffer> chunks = new ArrayList<>(chunkCount);
+        if (FileSet.matches(input)) {
+            if (CHECKPOINT != null) {
+                throw new IllegalArgumentException("A checkpoint covers a single input file, not " + input);
+            }
+            // Every file is mapped into the arena, which must outlive the result
+            try (final Arena arena = Arena.ofShared()) {
+                consumer.accept(merge(FileSet.schedule(FileSet.paths(input), arena)));
+                return;
+            }
+        }
 
-        long head = 0L;
+        // The arena must outlive the result, station names point into the mapping
+        try (final Arena arena = Arena.ofShared();
+             final FileChannel channel = FileChannel.open(Path.of(input), StandardOpenOption.READ)) {
+
+            final long size = channel.size();
+            if (MAX_MAPPED > 0 && size > MAX_MAPPED && CHECKPOINT == null) {
+                // Only the header is mapped to recognise the format, text is then read in windows
+                final long header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, 64), arena).address();
+                if (SlidingWindow.matches(header, size)) {
+                    consumer.accept(merge(SlidingWindow.schedule(channel, size, MAX_MAPPED)));
+                    return;
+                }
+            }
 
-        // For each chunk
-        while (head < fileSize) {
+            final long base = size == 0 ? 0 : channel.map(FileChannel.MapMode.READ_ONLY, 0, size, arena).address();
+            if (MADVISE) {
+                Advice.mapped(base, size);
+            }
 
-            // Jump to the back
-            long tail = head + chunkSize;
-            // Find either the next new line character or the EOF
-            if (tail > fileSize) {
-                tail = fileSize;
+            final StationArrayMap stations;
+            if (Columnar.matches(base, size)) {
+                stations = Columnar.aggregate(base, size);
+            } else if (Gzip.matches(base, size)) {
+                stations = merge(Gzip.schedule(base, size));
+            } else if (CHECKPOINT != null) {
+                stations = Checkpoint.aggregate(Path.of(CHECKPOINT), base, size);
+            } else if (SHARDS > 0 || COORDINATOR_PORT >= 0) {
+                stations = Cluster.coordinate(Path.of(input), size, SHARDS, COORDINATOR_PORT, COORDINATOR_BIND, SHARD_SIZE, WORKER_TIMEOUT);
             } else {
-                file.seek(tail);
-                while (file.read() != '\n') {
-                    tail++;
-                }
-                tail++;
+                stations = merge(schedule(base, size));
             }
-
-            // Add the chunk to the list and set the head to the tail
-            chunks.add(file.getChannel().map(FileChannel.MapMode.READ_ONLY, head, tail - head));
-            head = tail;
+            consumer.accept(stations);
         }
-
-        return chunks;
     }
 
-    // processChunk process the chunk and returns a map of ByteSpan to Station.
-    private static StationArrayMap processChunk(final MappedByteBuffer chunk) {
-
-        final StationArrayMap stations = new StationArrayMap(8192);
-
-        long address = baseAddress(chunk);
-        long capacity = address + chunk.capacity();
-
-        while (address < capacity) {
+    // spawnWorker starts a copy of this process with the same command line to do the work and relays its output.
+    // It returns as soon as the worker closes stdout, leaving the worker to unmap the file and shut down alone.
+    private static int spawnWorker() throws IOException, InterruptedException {
+        final ProcessHandle.Info info = ProcessHandle.current().info();
+        final List<String> command = new ArrayList<>();
+        command.add(info.command().orElseThrow());
+        info.arguments().ifPresent(arguments -> command.addAll(Arrays.asList(arguments)));
+
+        final ProcessBuilder builder = new ProcessBuilder(command)
+                .redirectInput(ProcessBuilder.Redirect.INHERIT)
+                .redirectError(ProcessBuilder.Redirect.INHERIT);
+        builder.environment().put(WORKER_ENV, "1");
+        final Process worker = builder.start();
+
+        try (final InputStream output = worker.getInputStream()) {
+            if (output.transferTo(System.out) > 0) {
+                System.out.flush();
+                return 0;
+            }
+        }
 
-            // Parse the station name - UTF8 string, delimited by ;
+        // Nothing was written, the worker failed
+        return worker.waitFor();
+    }
 
-            // Mark the start of the line
-            final long lineStart = address;
+    // merge combines the maps pairwise in rounds, the pairs of each round merged in parallel, and returns
+    // the map holding every station. Merging takes log2 of the number of maps rounds rather than one per map.
+    static StationArrayMap merge(final List<StationArrayMap> maps) {
+        if (maps.size() == 1) {
+            return maps.getFirst();
+        }
 
-            // Find the semicolon
-            address = address - 8;
-            int pos;
-            do {
-                address += 8;
-                long x = UNSAFE.getLong(address) ^ 0x3B3B3B3B3B3B3B3BL;
-                long mask = ((x - 0x0101010101010101L) & ~x) & 0x8080808080808080L;
-                pos = Long.numberOfTrailingZeros(mask) >> 3; // 8 if no semicolon
-            } while (pos == 8);
-            address = address + pos;
+        List<StationArrayMap> round = maps;
+        try (final ExecutorService pool = Executors.newFixedThreadPool(maps.size() / 2)) {
+            while (round.size() > 1) {
+                final List<Future<StationArrayMap>> pairs = new ArrayList<>((round.size() + 1) / 2);
+                for (int i = 0; i + 1 < round.size(); i += 2) {
+                    final StationArrayMap into = round.get(i);
+                    final StationArrayMap from = round.get(i + 1);
+                    pairs.add(pool.submit(() -> {
+                        into.merge(from);
+                        return into;
+                    }));
+                }
 
-            // Grab the name into a byte slice
-            final ByteSpan name = new ByteSpan(lineStart, (int) (address-(lineStart)));
+                final List<StationArrayMap> next = new ArrayList<>(pairs.size() + 1);
+                for (final Future<StationArrayMap> pair : pairs) {
+                    next.add(pair.get());
+                }
+                // An odd map out waits for the next round
+                if (round.size() % 2 == 1) {
+                    next.add(round.getLast());
+                }
+                round = next;
+            }
+            return round.getFirst();
+        } catch (final InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
+    // format returns the sorted result string of the map.
+    static String format(final StationArrayMap stations) {
+        return new ResultWriter().format(stations);
+    }
 
-            // Parse the temperature - reading can be negative, 1 or 2 integer digits, 1 DP
+    // print writes the sorted result of the map to stdout as a line, formatted straight into bytes. The names are
+    // UTF-8, on stdout with any other charset the result is printed as a string, encoded as the baseline's is.
+    private static void print(final StationArrayMap stations) {
+        if (!System.out.charset().equals(StandardCharsets.UTF_8)) {
+            System.out.println(format(stations));
+            return;
+        }
+        try {
+            new ResultWriter().writeTo(stations, System.out);
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+        System.out.println();
+        System.out.flush();
+    }
 
-            // Mark the start of the temperature reading
-            final long tempStart = address+1;
-            // Check if first character is (1 for negative, 0 for positive)
-            final int negative = ~(UNSAFE.getByte(tempStart) >> 4) & 1;
-            // Check how many integer digits there are (1 for 2 digits, 0 for 1 digit)
-            final int isThree = ~(UNSAFE.getByte(tempStart+negative+2) >> 4) & 1;
+    // schedule splits the mapped file into fixed size segments and runs the workers over them.
+    // Each worker claims the next unprocessed segment from a shared cursor until none are left,
+    // so a slow worker only delays its current segment rather than a whole per core chunk.
+    static List<StationArrayMap> schedule(final long base, final long size) {
+        final long segmentCount = (size + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+        final int workerCount = (int) Math.max(1, Math.min(WORKERS, segmentCount));
+        final AtomicLong cursor = new AtomicLong();
+
+        final int sharedCapacity = sharedCapacity(base, size, workerCount);
+        final StationArrayMap table = sharedCapacity > 0 ? new StationArrayMap(sharedCapacity) : null;
+
+        final List<Future<StationArrayMap>> futures = new ArrayList<>(workerCount);
+        try (final ExecutorService pool = Executors.newFixedThreadPool(workerCount)) {
+            for (int i = 0; i < workerCount; i++) {
+                futures.add(pool.submit(() -> {
+                    final StationArrayMap stations = table == null ? new StationArrayMap(8192) : new StationArrayMap.Shared(table);
+                    if (MADVISE) {
+                        Advice.process(stations, base, size, SEGMENT_SIZE, cursor, segmentCount, PREFETCH_DISTANCE);
+                        return stations;
+                    }
+                    long segment;
+                    while ((segment = cursor.getAndIncrement()) < segmentCount) {
+                        final long start = lineStart(base, base + size, base + segment * SEGMENT_SIZE);
+                        final long end = lineStart(base, base + size, base + (segment + 1) * SEGMENT_SIZE);
+                        process(stations, start, end);
+                    }
+                    return stations;
+                }));
+            }
 
-            // Find the 3 digits (if there are only 2, d1 == d2)
-            final int d1 = UNSAFE.getByte(tempStart + negative) - 48;
-            final int d2 = UNSAFE.getByte(tempStart + negative + isThree);
-            final int d3 = UNSAFE.getByte(tempStart + negative + isThree + 2);
+            // The shared table comes first, the workers only hold the stations it had no room for
+            final List<StationArrayMap> maps = new ArrayList<>(workerCount + 1);
+            if (table != null) {
+                maps.add(table);
+            }
+            for (final Future<StationArrayMap> future : futures) {
+                maps.add(future.get());
+            }
+            return maps;
+        } catch (final InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            // Calculate temp from 3 digits
-            final int temp = -negative ^ (d1*100*isThree + d2*10 + d3 - 528) - negative;
+    // sharedCapacity returns the capacity of a station table shared by the workers, or 0 if each keeps its own.
+    // Auto samples the file and shares a table if it holds many stations, there is more than one worker and
+    // no percentiles are kept. The table is half full at the estimate or more, any stations past that are
+    // kept by the workers that see them.
+    private static int sharedCapacity(final long base, final long size, final int workerCount) {
+        if (TABLE == TABLE_PRIVATE || (TABLE == TABLE_AUTO && (workerCount == 1 || PERCENTILES.length > 0))) {
+            return 0;
+        }
+        if (PERCENTILES.length > 0) {
+            throw new IllegalArgumentException("obrc.table=shared does not keep percentiles, use private or auto");
+        }
+        final long stations = Cardinality.estimate(base, size);
+        if (TABLE == TABLE_AUTO && stations < SHARED_STATIONS) {
+            return 0;
+        }
+        return Math.clamp(Long.highestOneBit(Math.max(1, stations * 2 - 1)) << 1, 8192, StationArrayMap.MAX_CAPACITY);
+    }
 
-            // Add reading to map
-            stations.getOrCreate(name).add(temp);
+    // process parses the whole lines between the two addresses into the map, with the configured scan.
+    static void process(final StationArrayMap stations, final long start, final long end) {
+        if (CURSORS == 2) {
+            processChunkInterleaved(stations, start, end);
+        } else if (VECTOR_SCAN) {
+            VectorScanner.processChunk(stations, start, end);
+        } else {
+            processChunk(stations, start, end);
+        }
+    }
 
-            // Progress head to next line start
-            address = tempStart + negative + isThree + 4;
+    // lineStart returns the address of the first line starting at or after the address, bounded by start and end.
+    static long lineStart(final long start, final long end, long address) {
+        if (address <= start) {
+            return start;
+        }
+        if (address >= end) {
+            return end;
         }
 
-        return stations;
+        while (address < end && UNSAFE.getByte(address - 1) != '\n') {
+            address++;
+        }
+        return address;
     }
 
-    // -------------------------------------------------------------------
-    // Station Array Map
-    // -------------------------------------------------------------------
+    // percentiles parses a comma separated list of percentiles, each from 0 to 100.
+    private static double[] percentiles(final String list) {
+        if (list.isBlank()) {
+            return new double[0];
+        }
 
-    private static class StationArrayMap {
-        private final int mask;
-        private final ByteSpan[] keys;
-        private final Station[] values;
+        final String[] parts = list.split(",");
+        final double[] percentiles = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            percentiles[i] = Double.parseDouble(parts[i].trim());
+            if (!(percentiles[i] >= 0 && percentiles[i] <= 100)) {
+                throw new IllegalArgumentException("Percentile out of range: " + parts[i]);
+            }
+        }
+        return percentiles;
+    }
 
-        private StationArrayMap(final int capacity) {
-            this.mask = capacity - 1;
-            this.keys = new ByteSpan[capacity];
-            this.values = new Station[capacity];
+    // cursors returns the number of cursors, 1 or 2. Two step through the lines with the SWAR scan, so they cannot be
+    // combined with the vector scanner.
+    private static int cursors(final int cursors) {
+        if (cursors != 1 && cursors != 2) {
+            throw new IllegalArgumentException("obrc.cursors must be 1 or 2: " + cursors);
+        }
+        if (cursors == 2 && System.getProperty("obrc.scanner", "swar").equals("vector")) {
+            throw new IllegalArgumentException("obrc.cursors=2 scans with swar, it cannot be combined with obrc.scanner=vector");
         }
+        return cursors;
+    }
 
-        private Station getOrCreate(final ByteSpan k) {
-            int b = (k.hash ^ (k.hash >> 13) ^ (k.hash >> 16)) & this.mask;
+    private static byte quantiles(final String name) {
+        return switch (name) {
+            case "exact" -> Quantiles.EXACT;
+            case "sketch" -> Quantiles.SKETCH;
+            default -> throw new IllegalArgumentException("Unknown quantiles: " + name);
+        };
+    }
 
-            ByteSpan e = this.keys[b];
-            while (e != null && (e.hash != k.hash || !e.equals(k))) {
-                b = (b+1) & this.mask;
-                e = this.keys[b];
-            }
-            if (e == null) {
-                this.keys[b] = k;
-                this.values[b] = new Station();
-            }
+    private static byte table(final String name) {
+        return switch (name) {
+            case "auto" -> TABLE_AUTO;
+            case "private" -> TABLE_PRIVATE;
+            case "shared" -> TABLE_SHARED;
+            default -> throw new IllegalArgumentException("Unknown station table: " + name);
+        };
+    }
 
-            return this.values[b];
+    // vectorScan returns whether the vector scanner can be used, it needs the incubator module
+    // loaded with --add-modules jdk.incubator.vector and a CPU with at least 256 bit vectors.
+    // Otherwise the SWAR scan is used, this is checked before VectorScanner is ever loaded.
+    private static boolean vectorScan(final String scanner) {
+        if (!scanner.equals("vector") || ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return false;
         }
+        return VectorScanner.SUPPORTED;
+    }
 
-        private void merge(final StationArrayMap other) {
-            other.forEach((k, v) -> this.getOrCreate(k).merge(v));
-        }
+    // processChunk process the memory between the two addresses into the map of station readings.
+    // The lines ending within TAIL bytes of the end are left to the careful parser.
+    static void processChunk(final StationArrayMap stations, final long start, final long end) {
+        final long fastEnd = fastEnd(start, end);
+        processLines(stations, start, fastEnd);
+        CarefulParser.processChunk(stations, fastEnd, end);
+    }
 
-        private void forEach(final BiConsumer<ByteSpan, Station> consumer) {
-            for (int i = 0; i < this.keys.length; i++) {
-                if (this.keys[i] != null) {
-                    consumer.accept(this.keys[i], this.values[i]);
-                }
+    // Bytes before the end of a chunk the fast path stops at, more than it reads past the semicolon of a line
+    static final long TAIL = 16;
+
+    // fastEnd returns the end of the last line with a semicolon ending at least TAIL bytes before the end, or start.
+    // The semicolon scan of any line before it stops by that semicolon, so the lines can be read 8 bytes at a time
+    // without reading past the end.
+    static long fastEnd(final long start, final long end) {
+        long fastEnd = start;
+        for (long address = end - TAIL - 1; address >= start; address--) {
+            final byte b = UNSAFE.getByte(address);
+            if (b == '\n') {
+                fastEnd = address + 1;
+            } else if (b == ';' && fastEnd > start) {
+                return fastEnd;
             }
         }
+        return start;
     }
 
-    // -------------------------------------------------------------------
-    // Byte Span
-    // -------------------------------------------------------------------
-
-    private static class ByteSpan implements Comparable<ByteSpan> {
-        private final long address;
-        private final int length;
-        private final int hash;
-        private String str;
-
-        private ByteSpan(final long address, final int length) {
-            this.address = address;
-            this.length = length;
-            if (this.length >= 4) {
-                this.hash = UNSAFE.getInt(this.address);
+    // processChunkInterleaved splits the memory between the two addresses into two line aligned halves and parses a
+    // line of each per iteration. Their lines share no data and every step is written out for both before the next,
+    // so the CPU can overlap the loads and map probes of one line with those of the other instead of waiting on each.
+    static void processChunkInterleaved(final StationArrayMap stations, final long start, final long end) {
+        final long fastEnd = fastEnd(start, end);
+        long a = start;
+        final long aEnd = lineStart(start, fastEnd, start + (fastEnd - start) / 2);
+        long b = aEnd;
+
+        // Step both cursors until the first one runs out
+        while (a < aEnd && b < fastEnd) {
+
+            // Find both semicolons, folding every word of each name into its hash on the way
+            long wordA = UNSAFE.getLong(a);
+            long wordB = UNSAFE.getLong(b);
+            long matchA = semicolonMatch(wordA);
+            long matchB = semicolonMatch(wordB);
+            long hA = 0;
+            long hB = 0;
+            long semicolonA = a;
+            long semicolonB = b;
+            while (matchA == 0) {
+                hA = (hA ^ wordA) * HASH_MULTIPLIER;
+                semicolonA += 8;
+                wordA = UNSAFE.getLong(semicolonA);
+                matchA = semicolonMatch(wordA);
+            }
+            while (matchB == 0) {
+                hB = (hB ^ wordB) * HASH_MULTIPLIER;
+                semicolonB += 8;
+                wordB = UNSAFE.getLong(semicolonB);
+                matchB = semicolonMatch(wordB);
+            }
+            final int posA = Long.numberOfTrailingZeros(matchA) >> 3;
+            final int posB = Long.numberOfTrailingZeros(matchB) >> 3;
+            hA = (hA ^ (wordA & StationArrayMap.mask(posA))) * HASH_MULTIPLIER;
+            hB = (hB ^ (wordB & StationArrayMap.mask(posB))) * HASH_MULTIPLIER;
+            semicolonA += posA;
+            semicolonB += posB;
+
+            // Grab the first 16 bytes of both names inline, zeroing anything past the semicolon
+            final int lengthA = (int) (semicolonA - a);
+            final int lengthB = (int) (semicolonB - b);
+            long nameA0 = UNSAFE.getLong(a);
+            long nameA1 = UNSAFE.getLong(a + 8);
+            long nameB0 = UNSAFE.getLong(b);
+            long nameB1 = UNSAFE.getLong(b + 8);
+            if (lengthA < 16) {
+                nameA0 &= StationArrayMap.mask(lengthA);
+                nameA1 &= StationArrayMap.mask(lengthA - 8);
+            }
+            if (lengthB < 16) {
+                nameB0 &= StationArrayMap.mask(lengthB);
+                nameB1 &= StationArrayMap.mask(lengthB - 8);
+            }
+
+            // Parse both temperatures
+            final long readingA = DECODER.decode(semicolonA + 1);
+            final long readingB = DECODER.decode(semicolonB + 1);
+
+            // Add both readings to map and progress each cursor to its next line, as processLines does
+            if (!TemperatureDecoder.wellFormed(UNSAFE.getLong(semicolonA + 1), readingA >>> 32)
+                    || !stations.add(a, lengthA, (int) (hA ^ (hA >>> 32)), nameA0, nameA1, (int) readingA)) {
+                a = processIrregular(stations, a, semicolonA, aEnd);
+            } else {
+                a = semicolonA + 1 + (readingA >>> 32);
+            }
+            if (!TemperatureDecoder.wellFormed(UNSAFE.getLong(semicolonB + 1), readingB >>> 32)
+                    || !stations.add(b, lengthB, (int) (hB ^ (hB >>> 32)), nameB0, nameB1, (int) readingB)) {
+                b = processIrregular(stations, b, semicolonB, fastEnd);
             } else {
-                this.hash = UNSAFE.getShort(this.address);
+                b = semicolonB + 1 + (readingB >>> 32);
             }
         }
 
-        public boolean equals(final ByteSpan span) {
-            if (this.length != span.length) {
-                return false;
-            }
+        // Finish whatever is left of the other
+        processLines(stations, a, aEnd);
+        processLines(stations, b, fastEnd);
+        CarefulParser.processChunk(stations, fastEnd, end);
+    }
 
-            int i = 0;
-            while (i < this.length) {
+    // processLines process the lines between the two addresses, end must be at least TAIL bytes before the end of
+    // the memory. A line that is not well formed is handed to the careful parser, which reads no further than end.
+    static void processLines(final StationArrayMap stations, long address, final long end) {
+        while (address < end) {
 
-                if (this.length - i >= 7) {
-                    if (UNSAFE.getLong(this.address+i) != UNSAFE.getLong(span.address+i)) {
-                        return false;
-                    }
-                    i += 8;
-                    continue;
-                }
+            // Parse the station name - UTF8 string, delimited by ;
 
-                if (this.length - i >= 3) {
-                    if (UNSAFE.getInt(this.address+i) != UNSAFE.getInt(span.address+i)) {
-                        return false;
-                    }
-                    i += 4;
-                    continue;
-                }
+            // Mark the start of the line
+            final long lineStart = address;
 
-                if (UNSAFE.getShort(this.address+i) != UNSAFE.getShort(span.address+i)) {
-                    return false;
-                }
-                i += 2;
+            // Find the semicolon, folding every word of the name into the hash on the way
+            long word = UNSAFE.getLong(address);
+            long match = semicolonMatch(word);
+            long h = 0;
+            while (match == 0) {
+                h = (h ^ word) * HASH_MULTIPLIER;
+                address += 8;
+                word = UNSAFE.getLong(address);
+                match = semicolonMatch(word);
             }
+            final int pos = Long.numberOfTrailingZeros(match) >> 3;
+            h = (h ^ (word & StationArrayMap.mask(pos))) * HASH_MULTIPLIER;
+            address = address + pos;
 
-            return true;
-        }
-
-        @Override
-        public String toString() {
-            if (this.str == null) {
-                final byte[] bytes = new byte[this.length];
-                UNSAFE.copyMemory(null, this.address, bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET, this.length);
-                this.str = new String(bytes);
+            // Grab the first 16 bytes of the name inline, zeroing anything past the semicolon
+            final int length = (int) (address - lineStart);
+            long name0 = UNSAFE.getLong(lineStart);
+            long name1 = UNSAFE.getLong(lineStart + 8);
+            if (length < 16) {
+                name0 &= StationArrayMap.mask(length);
+                name1 &= StationArrayMap.mask(length - 8);
             }
-            return this.str;
-        }
+            final int hash = (int) (h ^ (h >>> 32));
 
-        @Override
-        public int hashCode() {
-            return this.hash;
-        }
-
-        @Override
-        public int compareTo(final ByteSpan span) {
-            return this.toString().compareTo(span.toString());
-        }
-    }
 
-    // -------------------------------------------------------------------
-    // Station
-    // -------------------------------------------------------------------
-
-    private static class Station {
-        private int count = 0;
-        private long sum = 0;
-        private int max = Integer.MIN_VALUE;
-        private int min = Integer.MAX_VALUE;
-
-        private void add(final int val) {
-            this.count++;
-            this.sum += val;
-            this.max = Math.max(this.max, val);
-            this.min = Math.min(this.min, val);
-        }
-
-        private void merge(final Station other) {
-            this.count += other.count;
-            this.sum += other.sum;
-            this.max = Math.max(max, other.max);
-            this.min = Math.min(min, other.min);
-        }
+            // Parse the temperature
+            final long reading = DECODER.decode(address + 1);
 
-        @Override
-        public String toString() {
-            return round(min) + "/" + roundAverage(sum, count) + "/" + round(max);
-        }
+            // Add reading to map, unless the reading is not well formed or the map refuses the name, as it does
+            // when a line without a semicolon runs on into the next
+            if (!TemperatureDecoder.wellFormed(UNSAFE.getLong(address + 1), reading >>> 32)
+                    || !stations.add(lineStart, length, hash, name0, name1, (int) reading)) {
+                address = processIrregular(stations, lineStart, address, end);
+                continue;
+            }
 
-        private static double round(final int val) {
-            return (double) (val) / 10.0;
+            // Progress head to next line start
+            address = address + 1 + (reading >>> 32);
         }
+    }
 
-        private static double roundAverage(final long sum, final int count) {
-            return Math.round((double) sum / (double) count) / 10.0;
+    // processIrregular takes a line processLines rejected and returns the start of the next line. A well formed line
+    // ending with a carriage return is added as it is, any other is handed to the careful parser, reading no further
+    // than end. Kept out of processLines, so the loop compiles small.
+    private static long processIrregular(final StationArrayMap stations, final long lineStart, final long semicolon, final long end) {
+        final long reading = DECODER.decode(semicolon + 1);
+        if (TemperatureDecoder.wellFormedCrlf(UNSAFE.getLong(semicolon + 1), reading >>> 32)) {
+            final int length = (int) (semicolon - lineStart);
+            final long name0 = UNSAFE.getLong(lineStart) & StationArrayMap.mask(length);
+            final long name1 = UNSAFE.getLong(lineStart + 8) & StationArrayMap.mask(length - 8);
+            if (stations.add(lineStart, length, hash(lineStart, length, name0, name1), name0, name1, (int) reading)) {
+                return semicolon + 2 + (reading >>> 32);
+            }
         }
+        return CarefulParser.processLine(stations, lineStart, end);
     }
 
-    // -------------------------------------------------------------------
-    // Unsafe
-    // -------------------------------------------------------------------
-
-    private final static Unsafe UNSAFE = getUnsafe();
-
-    private static Unsafe getUnsafe() {
-        try {
-            final Field f = Unsafe.class.getDeclaredField("theUnsafe");
-            f.setAccessible(true);
-            return (Unsafe) f.get(null);
-        } catch (final NoSuchFieldException | IllegalAccessException e) {
-            throw new RuntimeException(e);
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    // hash returns the hash of the name, the same as folded into the semicolon scan of processChunk.
+    // Names under 16 bytes are hashed from their inline words without touching memory again.
+    static int hash(final long address, final int length, final long name0, final long name1) {
+        long h;
+        if (length < 8) {
+            h = name0 * HASH_MULTIPLIER;
+        } else if (length < 16) {
+            h = ((name0 * HASH_MULTIPLIER) ^ name1) * HASH_MULTIPLIER;
+        } else {
+            h = 0;
+            int i = 0;
+            for (; i + 8 <= length; i += 8) {
+                h = (h ^ UNSAFE.getLong(address + i)) * HASH_MULTIPLIER;
+            }
+            h = (h ^ (UNSAFE.getLong(address + i) & StationArrayMap.mask(length - i))) * HASH_MULTIPLIER;
         }
+        return (int) (h ^ (h >>> 32));
     }
 
-    private static long baseAddress(final MappedByteBuffer mbb) {
-        try {
-            final Field addressF = Buffer.class.getDeclaredField("address");
-            addressF.setAccessible(true);
-            return addressF.getLong(mbb);
-        } catch (final NoSuchFieldException | IllegalAccessException e) {
-            throw new RuntimeException(e);
-        }
+    // semicolonMatch returns a word with the high bit set in each semicolon byte, the lowest set bit is exact.
+    static long semicolonMatch(final long word) {
+        final long x = word ^ 0x3B3B3B3B3B3B3B3BL;
+        return ((x - 0x0101010101010101L) & ~x) & 0x8080808080808080L;
     }
 
 }
-
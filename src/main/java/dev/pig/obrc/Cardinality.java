@@ -0,0 +1,36 @@
+package dev.pig.obrc;
+
+// Cardinality estimates the number of distinct stations in a mapped file from a sample of it. The sample is a few
+// small windows spread across the file, parsed into a map as the workers would. A sample of a file with many stations
+// misses most of them, so the estimate is the Chao1 estimator: the stations seen, plus the square of those seen once
+// over twice those seen twice.
+final class Cardinality {
+
+    // Number and size of the windows sampled, together 128 KB or around 10,000 lines
+    private static final int WINDOWS = 8;
+    private static final long WINDOW_SIZE = 16 * 1024;
+
+    private Cardinality() {}
+
+    // estimate returns the estimated number of distinct stations of the text between base and base + size.
+    static long estimate(final long base, final long size) {
+        final StationArrayMap sample = new StationArrayMap(8192);
+        for (int i = 0; i < WINDOWS; i++) {
+            // Windows of a small file are cut short where the next starts, no line is sampled twice
+            final long from = base + size * i / WINDOWS;
+            final long to = Math.min(from + WINDOW_SIZE, base + size * (i + 1) / WINDOWS);
+            CalculateAverage.process(sample,
+                    CalculateAverage.lineStart(base, base + size, from), CalculateAverage.lineStart(base, base + size, to));
+        }
+
+        final long[] seen = new long[2];
+        sample.forEachEntry((address, length, count, sum, min, max, quantiles) -> {
+            if (count <= 2) {
+                seen[(int) count - 1]++;
+            }
+        });
+        // Bias corrected form, which stays finite when no station is seen twice
+        return sample.size() + seen[0] * (seen[0] - 1) / (2 * (seen[1] + 1));
+    }
+
+}
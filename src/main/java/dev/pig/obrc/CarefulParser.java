@@ -0,0 +1,126 @@
+package dev.pig.obrc;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+
+import static dev.pig.obrc.Memory.UNSAFE;
+
+// CarefulParser parses the lines the fast path rejects, and the last lines of every chunk, a byte at a time
+// without ever reading past the end. It takes lines ending with a carriage return and new line or with the
+// end of the input, and readings with no or any number of decimal places, rounded half away from zero to
+// tenths. Blank lines, lines without a semicolon or a name and readings it cannot parse are skipped.
+final class CarefulParser {
+
+    // Readings are kept in tenths from -99.9 to 99.9, as the exact quantiles bin them
+    private static final int MAX_TEMP = 999;
+
+    private static final int INVALID = Integer.MIN_VALUE;
+
+    // Per thread copy of the name being added, zero padded for the 8 byte reads of the map
+    private static final ThreadLocal<MemorySegment> SCRATCH = ThreadLocal.withInitial(() -> Arena.ofAuto().allocate(256, 8));
+
+    private CarefulParser() {}
+
+    // processChunk parses the lines between the two addresses into the map.
+    static void processChunk(final StationArrayMap stations, long address, final long end) {
+        while (address < end) {
+            address = processLine(stations, address, end);
+        }
+    }
+
+    // processLine parses the line starting at the address into the map and returns the start of the next line,
+    // or end if the line runs up to it.
+    static long processLine(final StationArrayMap stations, final long lineStart, final long end) {
+        long newline = lineStart;
+        while (newline < end && UNSAFE.getByte(newline) != '\n') {
+            newline++;
+        }
+        final long next = newline < end ? newline + 1 : end;
+
+        long lineEnd = newline;
+        if (lineEnd > lineStart && UNSAFE.getByte(lineEnd - 1) == '\r') {
+            lineEnd--;
+        }
+
+        long semicolon = lineStart;
+        while (semicolon < lineEnd && UNSAFE.getByte(semicolon) != ';') {
+            semicolon++;
+        }
+        if (semicolon == lineStart || semicolon == lineEnd) {
+            return next;
+        }
+
+        final int temp = decode(semicolon + 1, lineEnd);
+        if (temp != INVALID) {
+            add(stations, lineStart, (int) (semicolon - lineStart), temp);
+        }
+        return next;
+    }
+
+    // decode parses the reading between the two addresses, an optional '-', at least one digit and an optional
+    // fraction of at least one digit, and returns it in tenths or INVALID if it is malformed or out of range.
+    static int decode(long address, final long end) {
+        final boolean negative = address < end && UNSAFE.getByte(address) == '-';
+        if (negative) {
+            address++;
+        }
+
+        // Integer digits, stopping early once out of range
+        int tenths = 0;
+        final long integers = address;
+        while (address < end && isDigit(UNSAFE.getByte(address))) {
+            tenths = tenths * 10 + (UNSAFE.getByte(address++) - '0') * 10;
+            if (tenths > MAX_TEMP) {
+                return INVALID;
+            }
+        }
+        if (address == integers) {
+            return INVALID;
+        }
+
+        // Fraction digits, the first is kept, the second rounds and the rest are only checked
+        if (address < end && UNSAFE.getByte(address) == '.') {
+            final long fraction = ++address;
+            while (address < end && isDigit(UNSAFE.getByte(address))) {
+                final int digit = UNSAFE.getByte(address) - '0';
+                if (address == fraction) {
+                    tenths += digit;
+                } else if (address == fraction + 1 && digit >= 5) {
+                    tenths++;
+                }
+                address++;
+            }
+            if (address == fraction) {
+                return INVALID;
+            }
+        }
+
+        if (address != end || tenths > MAX_TEMP) {
+            return INVALID;
+        }
+        return negative ? -tenths : tenths;
+    }
+
+    private static boolean isDigit(final byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    // add copies the name into the scratch memory, so every read of the map stays within it, and records the reading.
+    // The map copies the name again on first sight, the scratch memory is reused by the next line.
+    private static void add(final StationArrayMap stations, final long address, final int length, final int temp) {
+        MemorySegment scratch = SCRATCH.get();
+        if (scratch.byteSize() < length + 16L) {
+            scratch = Arena.ofAuto().allocate(length + 16L, 8);
+            SCRATCH.set(scratch);
+        }
+
+        final long name = scratch.address();
+        UNSAFE.copyMemory(address, name, length);
+        UNSAFE.setMemory(name + length, 16, (byte) 0);
+
+        final long name0 = UNSAFE.getLong(name) & StationArrayMap.mask(length);
+        final long name1 = UNSAFE.getLong(name + 8) & StationArrayMap.mask(length - 8);
+        stations.addCopy(name, length, CalculateAverage.hash(name, length, name0, name1), name0, name1, temp);
+    }
+
+}
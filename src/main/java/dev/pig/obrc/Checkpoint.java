@@ -0,0 +1,200 @@
+package dev.pig.obrc;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import static dev.pig.obrc.Memory.UNSAFE;
+
+// Checkpoint is a sidecar file holding the aggregates of an append only input up to a byte offset.
+// A run with a checkpoint only parses the input past the offset, as long as the prefix it covers
+// is unchanged, and then writes a new checkpoint covering everything up to the last complete line.
+//
+// Layout: magic, version, offset, fingerprint, station count, how quantiles are kept (0 for not) and the sketch
+// accuracy, then per station the name length and bytes as read from the input followed by count, sum, min and max, and
+// if kept the quantiles.
+final class Checkpoint {
+
+    private static final int MAGIC = 0x4F425243; // OBRC
+    // Version 3 wrote names decoded and re-encoded as UTF-8, merging names that are not valid UTF-8
+    private static final int VERSION = 4;
+
+    // The prefix is fingerprinted from this many samples of this many bytes, rather than read in full
+    private static final int SAMPLES = 16;
+    private static final int SAMPLE_SIZE = 4096;
+
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private Checkpoint() {}
+
+    // aggregate returns the map of every station of the mapped input, resuming from the checkpoint at the path if it
+    // still matches the input and falling back to a full scan otherwise. The checkpoint is then rewritten.
+    static StationArrayMap aggregate(final Path path, final long base, final long size) throws IOException {
+        // An unterminated last line may still be being written, it is counted but left out of the checkpoint
+        long complete = base + size;
+        while (complete > base && UNSAFE.getByte(complete - 1) != '\n') {
+            complete--;
+        }
+        final long completeSize = complete - base;
+
+        StationArrayMap totals = new StationArrayMap(8192, true);
+        long offset = 0;
+
+        final Loaded loaded = load(path);
+        if (loaded != null && loaded.offset <= completeSize && loaded.fingerprint == fingerprint(base, loaded.offset)) {
+            totals = loaded.stations;
+            offset = loaded.offset;
+        }
+
+        totals.merge(CalculateAverage.merge(CalculateAverage.schedule(base + offset, completeSize - offset)));
+        save(path, completeSize, fingerprint(base, completeSize), totals);
+
+        if (complete < base + size) {
+            totals.merge(CalculateAverage.merge(CalculateAverage.schedule(complete, base + size - complete)));
+        }
+
+        return totals;
+    }
+
+    // fingerprint hashes the size and evenly spaced samples of the first size bytes, the last sample
+    // ending at the size, so an input rewritten in place is caught without reading all of it again.
+    static long fingerprint(final long base, final long size) {
+        long h = size * HASH_MULTIPLIER;
+        final long sample = Math.min(SAMPLE_SIZE, size) & ~7L;
+        if (sample == 0) {
+            for (long i = 0; i < size; i++) {
+                h = (h ^ UNSAFE.getByte(base + i)) * HASH_MULTIPLIER;
+            }
+            return h;
+        }
+
+        for (int s = 0; s < SAMPLES; s++) {
+            final long start = (size - sample) * s / (SAMPLES - 1);
+            for (long i = 0; i < sample; i += 8) {
+                h = (h ^ UNSAFE.getLong(base + start + i)) * HASH_MULTIPLIER;
+            }
+        }
+        return h;
+    }
+
+    // quantiles returns how quantiles are kept in this run, 0 if they are not.
+    static byte quantiles() {
+        return CalculateAverage.PERCENTILES.length > 0 ? CalculateAverage.QUANTILES : 0;
+    }
+
+    // accuracy returns the sketch accuracy written along with the quantiles, only reading the option when sketches are kept.
+    static double accuracy() {
+        return quantiles() == Quantiles.SKETCH ? Quantiles.Sketch.ACCURACY : 0;
+    }
+
+    private record Loaded(long offset, long fingerprint, StationArrayMap stations) {}
+
+    // load reads the checkpoint at the path, returning null if there is none or it can't be read.
+    private static Loaded load(final Path path) {
+        try (final DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            final long offset = in.readLong();
+            final long fingerprint = in.readLong();
+            final int count = in.readInt();
+            // Quantiles kept another way, or not at all, can't resume this run
+            final byte quantiles = in.readByte();
+            final double accuracy = in.readDouble();
+            if (quantiles != quantiles() || (quantiles == Quantiles.SKETCH && accuracy != Quantiles.Sketch.ACCURACY)) {
+                return null;
+            }
+
+            final StationArrayMap stations = readStations(in, count, quantiles != 0);
+            return new Loaded(offset, fingerprint, stations);
+        } catch (final NoSuchFileException e) {
+            return null;
+        } catch (final IOException e) {
+            System.err.printf("Ignoring unreadable checkpoint %s: %s%n", path, e);
+            return null;
+        }
+    }
+
+    // save writes the checkpoint to a temporary file first, replacing the old one only once complete.
+    private static void save(final Path path, final long offset, final long fingerprint,
+                             final StationArrayMap stations) throws IOException {
+        final Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (final DataOutputStream out = new DataOutputStream(Files.newOutputStream(temp))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(offset);
+            out.writeLong(fingerprint);
+
+            out.writeInt(stations.size());
+            out.writeByte(quantiles());
+            out.writeDouble(accuracy());
+
+            writeStations(out, stations);
+        }
+
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // writeStations writes each station as its name length and bytes, as they were read from the input rather than
+    // decoded, so names that are not valid UTF-8 stay distinct. Then count, sum, min and max, and if kept its quantiles.
+    static void writeStations(final DataOutput out, final StationArrayMap stations) throws IOException {
+        try {
+            stations.forEachEntry((address, length, count, sum, min, max, quantiles) -> {
+                try {
+                    final byte[] name = new byte[length];
+                    UNSAFE.copyMemory(null, address, name, Memory.BYTE_ARRAY_OFFSET, length);
+                    out.writeShort(length);
+                    out.write(name);
+                    out.writeLong(count);
+                    out.writeLong(sum);
+                    out.writeLong(min);
+                    out.writeLong(max);
+                    if (quantiles != null) {
+                        quantiles.write(out);
+                    }
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // readStations reads count stations as written by writeStations into a map that owns their names.
+    static StationArrayMap readStations(final DataInput in, final int count, final boolean quantiles) throws IOException {
+        try (final Arena arena = Arena.ofConfined()) {
+            // Names are merged from native memory, with room to read 16 bytes past the start
+            MemorySegment scratch = arena.allocate(256);
+            final StationArrayMap stations = new StationArrayMap(8192, true);
+            for (int i = 0; i < count; i++) {
+                final byte[] name = new byte[in.readUnsignedShort()];
+                in.readFully(name);
+                if (name.length + 16L > scratch.byteSize()) {
+                    scratch = arena.allocate(name.length + 16L);
+                }
+                MemorySegment.copy(name, 0, scratch, ValueLayout.JAVA_BYTE, 0, name.length);
+                final long stationCount = in.readLong();
+                final long sum = in.readLong();
+                final long min = in.readLong();
+                final long max = in.readLong();
+                stations.merge(scratch.address(), name.length,
+                        new Station(stationCount, sum, min, max, quantiles ? Quantiles.read(in) : null));
+            }
+            return stations;
+        }
+    }
+
+}
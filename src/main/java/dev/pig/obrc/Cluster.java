@@ -0,0 +1,225 @@
+package dev.pig.obrc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Cluster shards the parsing of a file across worker processes, on this host or others, over TCP.
+// The coordinator cuts the file into ranges and hands them to the workers one at a time. A worker maps
+// the same file, parses its range on all its threads with the line alignment of schedule and replies
+// with the stations of the range in the checkpoint encoding, names as raw bytes, which the coordinator merges.
+// A range held by a worker whose connection fails, or that does not reply in time, is put back for the others to take.
+//
+// Protocol, coordinator first: protocol version, path as UTF, quantiles kind and sketch accuracy. Then per range the
+// coordinator sends its start and end offsets and the worker replies with a station count and the stations,
+// until the coordinator sends a start of -1.
+final class Cluster {
+
+    // Set in the environment of spawned workers, to the host and port of the coordinator
+    static final String COORDINATOR_ENV = "OBRC_COORDINATOR";
+
+    // Marks the end of the ranges
+    private static final long DONE = -1;
+
+    // Version 1 workers sent names decoded and re-encoded as UTF-8, merging names that are not valid UTF-8
+    private static final int PROTOCOL = 2;
+
+    private Cluster() {}
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // Coordinator
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // coordinate returns the map of every station of the file of the size, parsed by the spawned local workers and any
+    // that connect from elsewhere. Without a port the coordinator listens on any free one, and without a bind address
+    // only on the loopback address. A worker that takes longer than the timeout to reply, in milliseconds, has failed.
+    static StationArrayMap coordinate(final Path input, final long size, final int shards, final int port, final String bind,
+                                      final long shardSize, final int timeout) throws IOException {
+        final BlockingQueue<long[]> pending = new LinkedBlockingQueue<>();
+        for (long from = 0; from < size; from += shardSize) {
+            pending.add(new long[]{from, Math.min(size, from + shardSize)});
+        }
+        final CountDownLatch done = new CountDownLatch(pending.size());
+        final StationArrayMap totals = new StationArrayMap(8192, true);
+        if (pending.isEmpty()) {
+            return totals;
+        }
+
+        final AtomicInteger connected = new AtomicInteger();
+        final List<Process> processes = new ArrayList<>(shards);
+        try (final ServerSocket server = new ServerSocket(Math.max(0, port), 50,
+                bind == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bind))) {
+
+            Thread.ofPlatform().daemon().name("obrc-coordinator").start(() -> {
+                try {
+                    while (true) {
+                        final Socket socket = server.accept();
+                        connected.incrementAndGet();
+                        Thread.ofPlatform().daemon().name("obrc-shard").start(() -> {
+                            try {
+                                serve(socket, timeout, input, pending, done, totals);
+                            } finally {
+                                connected.decrementAndGet();
+                            }
+                        });
+                    }
+                } catch (final IOException e) {
+                    // Closed once every range is done
+                }
+            });
+
+            // Local workers connect over loopback when listening on every interface
+            final InetAddress local = server.getInetAddress().isAnyLocalAddress() ? InetAddress.getLoopbackAddress() : server.getInetAddress();
+            final String address = local.getHostAddress() + ":" + server.getLocalPort();
+            for (int i = 0; i < shards; i++) {
+                processes.add(spawn(address));
+            }
+
+            // Without local workers left to connect, ranges can only be lost
+            while (!done.await(100, TimeUnit.MILLISECONDS)) {
+                if (shards > 0 && connected.get() == 0 && processes.stream().noneMatch(Process::isAlive)) {
+                    throw new IllegalStateException("Every worker failed with " + done.getCount() + " ranges left");
+                }
+            }
+        } catch (final InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            processes.forEach(Process::destroy);
+        }
+
+        synchronized (totals) {
+            return totals;
+        }
+    }
+
+    // serve hands ranges to one worker until none are left, merging each reply into the totals.
+    // If the connection fails or a reply takes longer than the timeout the range it holds is put back.
+    private static void serve(final Socket socket, final int timeout, final Path input, final BlockingQueue<long[]> pending,
+                              final CountDownLatch done, final StationArrayMap totals) {
+        long[] range = null;
+        try (socket;
+             final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+
+            // A read timing out throws SocketTimeoutException, an IOException like any other failure
+            socket.setSoTimeout(timeout);
+
+            out.writeInt(PROTOCOL);
+            out.writeUTF(input.toAbsolutePath().toString());
+            out.writeByte(Checkpoint.quantiles());
+            out.writeDouble(Checkpoint.accuracy());
+
+            while ((range = next(pending, done)) != null) {
+                out.writeLong(range[0]);
+                out.writeLong(range[1]);
+                out.flush();
+
+                final StationArrayMap stations = Checkpoint.readStations(in, in.readInt(), Checkpoint.quantiles() != 0);
+                synchronized (totals) {
+                    totals.merge(stations);
+                }
+                range = null;
+                done.countDown();
+            }
+            out.writeLong(DONE);
+        } catch (final IOException e) {
+            if (range != null) {
+                System.err.printf("Reassigning range %s of failed worker %s: %s%n",
+                        Arrays.toString(range), socket.getRemoteSocketAddress(), e);
+                pending.add(range);
+            }
+        } catch (final InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // next returns the next pending range, waiting while ranges held by other workers may still come back,
+    // or null once every range is done.
+    private static long[] next(final BlockingQueue<long[]> pending, final CountDownLatch done)
+            throws InterruptedException {
+        while (done.getCount() > 0) {
+            final long[] range = pending.poll(100, TimeUnit.MILLISECONDS);
+            if (range != null) {
+                return range;
+            }
+        }
+        return null;
+    }
+
+    // spawn starts a copy of this process with the same command line, as a worker of the coordinator at the address.
+    private static Process spawn(final String address) throws IOException {
+        final ProcessHandle.Info info = ProcessHandle.current().info();
+        final List<String> command = new ArrayList<>();
+        command.add(info.command().orElseThrow());
+        info.arguments().ifPresent(arguments -> command.addAll(Arrays.asList(arguments)));
+
+        final ProcessBuilder builder = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT);
+        builder.environment().put(COORDINATOR_ENV, address);
+        return builder.start();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // Worker
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // work connects to the coordinator at host:port and parses the ranges it is given until it is done.
+    static void work(final String address) throws IOException {
+        final int colon = address.lastIndexOf(':');
+        try (final Socket socket = new Socket(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+             final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+
+            if (in.readInt() != PROTOCOL) {
+                throw new IllegalStateException("Worker protocol differs from the coordinator");
+            }
+            final Path input = Path.of(in.readUTF());
+            final byte quantiles = in.readByte();
+            final double accuracy = in.readDouble();
+            if (quantiles != Checkpoint.quantiles() || (quantiles == Quantiles.SKETCH && accuracy != Quantiles.Sketch.ACCURACY)) {
+                throw new IllegalStateException("Worker percentile options differ from the coordinator");
+            }
+
+            // The arena must outlive each reply, station names point into the mapping
+            try (final Arena arena = Arena.ofShared();
+                 final FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+                final long size = channel.size();
+                final long base = channel.map(FileChannel.MapMode.READ_ONLY, 0, size, arena).address();
+
+                long from;
+                while ((from = in.readLong()) != DONE) {
+                    final long to = in.readLong();
+                    final long start = CalculateAverage.lineStart(base, base + size, base + from);
+                    final long end = CalculateAverage.lineStart(base, base + size, base + to);
+
+                    final StationArrayMap stations = CalculateAverage.merge(CalculateAverage.schedule(start, end - start));
+                    out.writeInt(stations.size());
+                    Checkpoint.writeStations(out, stations);
+                    out.flush();
+                }
+            }
+        } catch (final ConnectException e) {
+            // The coordinator finished before this worker was needed
+        }
+    }
+
+}
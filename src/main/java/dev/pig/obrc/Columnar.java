@@ -0,0 +1,427 @@
+package dev.pig.obrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static dev.pig.obrc.Memory.UNSAFE;
+
+// Columnar is a binary form of the measurements, a station dictionary followed by blocks of fixed width columns.
+// Aggregating it is a straight scan of 4 or 6 bytes per reading with no delimiters to find or digits to decode.
+//
+// Layout, little endian:
+// - Header: magic, version, id width (2 or 4 bytes), station count, then per station in sorted order
+//   the name length (u16) and bytes as read from the input, followed by 16 zero bytes and padded to 8 bytes.
+// - Blocks: row count (u32) and 4 bytes padding, the station ids, then the temperatures in tenths (i16), padded to 8 bytes.
+// - Index: the offset of each block, then the block count. The blocks fill the file from the header to the index.
+public final class Columnar {
+
+    // Starts with a zero byte, which never appears in the text input
+    static final long MAGIC = 0x014C4F4352424F00L; // \0OBRCOL\1
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 24;
+    private static final int BLOCK_HEADER_SIZE = 8;
+
+    // Shortest line the careful parser takes, "a;0\n", bounds the rows in a segment
+    private static final int MIN_LINE = 4;
+
+    private Columnar() {}
+
+    // main converts a text measurements file to the columnar format.
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: Columnar <measurements.txt> <measurements.obrc>");
+            System.exit(1);
+        }
+        convert(Path.of(args[0]), Path.of(args[1]));
+    }
+
+    // matches returns whether the mapped file is in the columnar format.
+    static boolean matches(final long base, final long size) {
+        return size >= HEADER_SIZE && UNSAFE.getLong(base) == MAGIC;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // Converter
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // convert writes the text input as columnar output. The input is parsed twice, first to collect
+    // the station names for the dictionary and then by the workers, each writing the blocks for the
+    // segments it claims at the next free offset of the output. The output is written to a temporary
+    // file first, replacing the old one only once complete.
+    static void convert(final Path input, final Path output) throws IOException {
+        final Path temp = output.resolveSibling(output.getFileName() + ".tmp");
+        try {
+            write(input, temp);
+            Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // write writes the columnar form of the text input to the output.
+    private static void write(final Path input, final Path output) throws IOException {
+        try (final Arena arena = Arena.ofShared();
+             final FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             final FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            final long size = in.size();
+            final long base = size == 0 ? 0 : in.map(FileChannel.MapMode.READ_ONLY, 0, size, arena).address();
+
+            final StationDictionary dictionary = new StationDictionary(names(CalculateAverage.merge(CalculateAverage.schedule(base, size))));
+            final int width = dictionary.size() <= 1 << 16 ? 2 : 4;
+
+            final ByteBuffer header = header(dictionary, width);
+            out.write(header, 0);
+
+            final List<Long> blocks = writeBlocks(dictionary, width, base, size, out, header.capacity());
+
+            final ByteBuffer index = ByteBuffer.allocate((blocks.size() + 1) * 8).order(ByteOrder.LITTLE_ENDIAN);
+            blocks.stream().sorted().forEach(index::putLong);
+            index.putLong(blocks.size()).flip();
+            out.write(index, out.size());
+        }
+    }
+
+    // names returns the name bytes of every station of the map, in the order of the output.
+    private static List<byte[]> names(final StationArrayMap stations) {
+        final long[] addresses = new long[stations.size()];
+        final int[] lengths = new int[stations.size()];
+        final int[] i = {0};
+        stations.forEachEntry((address, length, count, sum, min, max, quantiles) -> {
+            addresses[i[0]] = address;
+            lengths[i[0]++] = length;
+        });
+
+        final List<byte[]> names = new ArrayList<>(addresses.length);
+        for (final int e : StationSort.sort(addresses, lengths)) {
+            final byte[] name = new byte[lengths[e]];
+            UNSAFE.copyMemory(null, addresses[e], name, Memory.BYTE_ARRAY_OFFSET, name.length);
+            names.add(name);
+        }
+        return names;
+    }
+
+    // header returns the file header and dictionary, padded to a whole number of longs.
+    private static ByteBuffer header(final StationDictionary dictionary, final int width) {
+        long length = HEADER_SIZE + 16;
+        for (int id = 0; id < dictionary.size(); id++) {
+            length += 2 + dictionary.length(id);
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate((int) align(length)).order(ByteOrder.LITTLE_ENDIAN);
+        header.putLong(MAGIC).putInt(VERSION).putInt(width).putInt(dictionary.size()).putInt(0);
+        for (int id = 0; id < dictionary.size(); id++) {
+            final byte[] name = new byte[dictionary.length(id)];
+            UNSAFE.copyMemory(null, dictionary.address(id), name, Memory.BYTE_ARRAY_OFFSET, name.length);
+            header.putShort((short) name.length).put(name);
+        }
+        return header.clear();
+    }
+
+    // writeBlocks converts the input in parallel, one block per segment, and returns the offsets of the blocks.
+    private static List<Long> writeBlocks(final StationDictionary dictionary, final int width,
+                                          final long base, final long size, final FileChannel out, final long start) {
+        final long segmentCount = (size + CalculateAverage.SEGMENT_SIZE - 1) / CalculateAverage.SEGMENT_SIZE;
+        final int workerCount = (int) Math.max(1, Math.min(CalculateAverage.WORKERS, segmentCount));
+        final AtomicLong cursor = new AtomicLong();
+        final AtomicLong position = new AtomicLong(start);
+
+        final List<Future<List<Long>>> futures = new ArrayList<>(workerCount);
+        try (final ExecutorService pool = Executors.newFixedThreadPool(workerCount)) {
+            for (int i = 0; i < workerCount; i++) {
+                futures.add(pool.submit(() -> {
+                    final List<Long> offsets = new ArrayList<>();
+                    final ColumnWriter writer = new ColumnWriter(dictionary, width);
+                    MemorySegment block = MemorySegment.NULL;
+                    long segment;
+                    while ((segment = cursor.getAndIncrement()) < segmentCount) {
+                        final long from = CalculateAverage.lineStart(base, base + size, base + segment * CalculateAverage.SEGMENT_SIZE);
+                        final long to = CalculateAverage.lineStart(base, base + size, base + (segment + 1) * CalculateAverage.SEGMENT_SIZE);
+
+                        // Room for the most rows the segment can hold, ids are written from the front and temperatures from the middle
+                        final long maxRows = (to - from) / MIN_LINE + 1;
+                        final long capacity = align(BLOCK_HEADER_SIZE + maxRows * (width + 2));
+                        if (block.byteSize() < capacity) {
+                            block = Arena.ofAuto().allocate(capacity, 8);
+                        }
+                        final long ids = block.address() + BLOCK_HEADER_SIZE;
+                        final long temps = ids + maxRows * width;
+
+                        writer.start(ids, temps);
+                        CalculateAverage.process(writer, from, to);
+                        final int rows = writer.rows;
+
+                        // Close the gap between the columns and write the block at the next free offset
+                        UNSAFE.putLong(block.address(), rows);
+                        UNSAFE.copyMemory(temps, ids + (long) rows * width, rows * 2L);
+                        final long length = align(BLOCK_HEADER_SIZE + (long) rows * (width + 2));
+                        final long offset = position.getAndAdd(length);
+                        final ByteBuffer buffer = block.asSlice(0, length).asByteBuffer();
+                        while (buffer.hasRemaining()) {
+                            out.write(buffer, offset + buffer.position());
+                        }
+                        offsets.add(offset);
+                    }
+                    return offsets;
+                }));
+            }
+
+            final List<Long> offsets = new ArrayList<>();
+            for (final Future<List<Long>> future : futures) {
+                offsets.addAll(future.get());
+            }
+            return offsets;
+        } catch (final InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // ColumnWriter takes the readings the parser would add to a map and writes the id and temperature of each to the
+    // columns of a block instead. Text is parsed as for the dictionary, so the lines the careful parser skips there are
+    // skipped here and every name the parser accepts has an id.
+    private static final class ColumnWriter extends StationArrayMap {
+
+        private final StationDictionary dictionary;
+        private final int width;
+
+        private long ids;
+        private long temps;
+        private int rows;
+
+        private ColumnWriter(final StationDictionary dictionary, final int width) {
+            super(16);
+            this.dictionary = dictionary;
+            this.width = width;
+        }
+
+        // start points the writer at the columns of the next block.
+        private void start(final long ids, final long temps) {
+            this.ids = ids;
+            this.temps = temps;
+            this.rows = 0;
+        }
+
+        // add writes the row, or returns false for a name the map would refuse, which the careful parser then takes.
+        @Override
+        boolean add(final long address, final int length, final int hash, final long name0, final long name1, final int temp) {
+            final int id = this.dictionary.id(address, length, hash, name0, name1);
+            if (id < 0) {
+                if (!isName(address, length)) {
+                    return false;
+                }
+                final byte[] name = new byte[length];
+                UNSAFE.copyMemory(null, address, name, Memory.BYTE_ARRAY_OFFSET, length);
+                throw new IllegalStateException("Station missing from the dictionary: " + new String(name, StandardCharsets.UTF_8));
+            }
+
+            if (this.width == 2) {
+                UNSAFE.putShort(this.ids + this.rows * 2L, (short) id);
+            } else {
+                UNSAFE.putInt(this.ids + this.rows * 4L, id);
+            }
+            UNSAFE.putShort(this.temps + this.rows * 2L, (short) temp);
+            this.rows++;
+            return true;
+        }
+
+        // addCopy writes the row, the careful parser only passes names the map accepts.
+        @Override
+        void addCopy(final long address, final int length, final int hash, final long name0, final long name1, final int temp) {
+            this.add(address, length, hash, name0, name1, temp);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // Reader
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // aggregate returns the map of every station of the mapped columnar file. Workers claim blocks from
+    // a shared cursor and aggregate them into arrays indexed by station id, which are then summed.
+    static StationArrayMap aggregate(final long base, final long size) {
+        final int version = UNSAFE.getInt(base + 8);
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported columnar version: " + version);
+        }
+        final int width = UNSAFE.getInt(base + 12);
+        final int stationCount = UNSAFE.getInt(base + 16);
+        if ((width != 2 && width != 4) || stationCount < 0 || size % 8 != 0) {
+            throw corrupt("header");
+        }
+
+        // Dictionary names are read in place, the padding after them keeps 16 bytes readable past every name
+        final long[] names = new long[stationCount];
+        final int[] lengths = new int[stationCount];
+        long address = base + HEADER_SIZE;
+        for (int id = 0; id < stationCount; id++) {
+            if (address + 2 > base + size) {
+                throw corrupt("dictionary");
+            }
+            lengths[id] = UNSAFE.getShort(address) & 0xFFFF;
+            names[id] = address + 2;
+            address += 2 + lengths[id];
+        }
+        final long blocks = align(address + 16 - base);
+        if (blocks + 8 > size) {
+            throw corrupt("dictionary");
+        }
+
+        final long blockCount = UNSAFE.getLong(base + size - 8);
+        if (blockCount < 0 || blockCount > (size - 8 - blocks) / 8) {
+            throw corrupt("block count");
+        }
+        final long index = base + size - 8 - blockCount * 8;
+        checkBlocks(base, blocks, index - base, index, blockCount, width);
+
+        final int workerCount = (int) Math.max(1, Math.min(CalculateAverage.WORKERS, blockCount));
+        final AtomicLong cursor = new AtomicLong();
+
+        final List<Future<Columns>> futures = new ArrayList<>(workerCount);
+        final Columns totals;
+        try (final ExecutorService pool = Executors.newFixedThreadPool(workerCount)) {
+            for (int i = 0; i < workerCount; i++) {
+                futures.add(pool.submit(() -> {
+                    final Columns columns = new Columns(stationCount);
+                    long block;
+                    while ((block = cursor.getAndIncrement()) < blockCount) {
+                        final long start = base + UNSAFE.getLong(index + block * 8);
+                        if (width == 2) {
+                            columns.addShortIds(start + BLOCK_HEADER_SIZE, UNSAFE.getInt(start));
+                        } else {
+                            columns.addIntIds(start + BLOCK_HEADER_SIZE, UNSAFE.getInt(start));
+                        }
+                    }
+                    return columns;
+                }));
+            }
+
+            totals = futures.getFirst().get();
+            for (int i = 1; i < futures.size(); i++) {
+                totals.merge(futures.get(i).get());
+            }
+        } catch (final InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+
+        final StationArrayMap stations = new StationArrayMap(8192);
+        for (int id = 0; id < stationCount; id++) {
+            if (totals.counts[id] > 0) {
+                stations.merge(names[id], lengths[id],
+                        new Station(totals.counts[id], totals.sums[id], totals.mins[id], totals.maxs[id],
+                                totals.quantiles == null ? null : totals.quantiles[id]));
+            }
+        }
+        return stations;
+    }
+
+    // checkBlocks checks that the blocks of the index lie between the two offsets and fill them, as a complete file's do.
+    private static void checkBlocks(final long base, final long from, final long to, final long index,
+                                    final long blockCount, final int width) {
+        long filled = 0;
+        for (long block = 0; block < blockCount; block++) {
+            final long offset = UNSAFE.getLong(index + block * 8);
+            if (offset < from || offset > to - BLOCK_HEADER_SIZE) {
+                throw corrupt("index");
+            }
+            final long length = align(BLOCK_HEADER_SIZE + (UNSAFE.getInt(base + offset) & 0xFFFFFFFFL) * (width + 2));
+            if (length > to - offset) {
+                throw corrupt("index");
+            }
+            filled += length;
+        }
+        if (filled != to - from) {
+            throw corrupt("index");
+        }
+    }
+
+    private static IllegalArgumentException corrupt(final String part) {
+        return new IllegalArgumentException("Corrupt or incomplete columnar file, " + part + " does not match its size");
+    }
+
+    // Columns holds the aggregates of each station, indexed by id.
+    private static final class Columns {
+
+        private final long[] counts;
+        private final long[] sums;
+        private final int[] mins;
+        private final int[] maxs;
+        // Quantiles of each station by id, created on its first reading, null unless percentiles are kept
+        private final Quantiles[] quantiles;
+
+        private Columns(final int stationCount) {
+            this.counts = new long[stationCount];
+            this.sums = new long[stationCount];
+            this.mins = new int[stationCount];
+            this.maxs = new int[stationCount];
+            Arrays.fill(this.mins, Integer.MAX_VALUE);
+            Arrays.fill(this.maxs, Integer.MIN_VALUE);
+            this.quantiles = CalculateAverage.PERCENTILES.length > 0 ? new Quantiles[stationCount] : null;
+        }
+
+        private void addShortIds(final long ids, final int rows) {
+            final long temps = ids + rows * 2L;
+            for (long i = 0; i < rows; i++) {
+                this.add(UNSAFE.getShort(ids + i * 2) & 0xFFFF, UNSAFE.getShort(temps + i * 2));
+            }
+        }
+
+        private void addIntIds(final long ids, final int rows) {
+            final long temps = ids + rows * 4L;
+            for (long i = 0; i < rows; i++) {
+                this.add(UNSAFE.getInt(ids + i * 4), UNSAFE.getShort(temps + i * 2));
+            }
+        }
+
+        private void add(final int id, final int temp) {
+            this.counts[id]++;
+            this.sums[id] += temp;
+            this.mins[id] = Math.min(this.mins[id], temp);
+            this.maxs[id] = Math.max(this.maxs[id], temp);
+            if (this.quantiles != null) {
+                if (this.quantiles[id] == null) {
+                    this.quantiles[id] = Quantiles.create();
+                }
+                this.quantiles[id].add(temp);
+            }
+        }
+
+        private void merge(final Columns other) {
+            for (int id = 0; id < this.counts.length; id++) {
+                this.counts[id] += other.counts[id];
+                this.sums[id] += other.sums[id];
+                this.mins[id] = Math.min(this.mins[id], other.mins[id]);
+                this.maxs[id] = Math.max(this.maxs[id], other.maxs[id]);
+                if (this.quantiles != null && other.quantiles[id] != null) {
+                    if (this.quantiles[id] == null) {
+                        this.quantiles[id] = other.quantiles[id];
+                    } else {
+                        this.quantiles[id].merge(other.quantiles[id]);
+                    }
+                }
+            }
+        }
+    }
+
+    private static long align(final long length) {
+        return (length + 7) & ~7L;
+    }
+
+}
@@ -0,0 +1,167 @@
+package dev.pig.obrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// FileSet aggregates many input files, named by a directory or a glob, into one result in one run.
+// The text files are all mapped up front and cut into tasks for a single pool of workers: files of a
+// segment or more are split into segments, smaller ones are batched together up to the segment size.
+// Gzip files are inflated one after another, each as a single file would be.
+final class FileSet {
+
+    private FileSet() {}
+
+    // matches returns whether the input names a directory or a glob rather than a single file.
+    static boolean matches(final String input) {
+        return Files.isDirectory(Path.of(input)) || (isGlob(input) && !Files.exists(Path.of(input)));
+    }
+
+    // paths returns the regular files in the directory, or the regular files matching the glob, in name order.
+    // A glob is walked from its leading directories without wildcards, as deep as its own path goes unless
+    // it holds a ** that crosses directories.
+    static List<Path> paths(final String input) throws IOException {
+        final Path path = Path.of(input);
+        if (Files.isDirectory(path)) {
+            try (final Stream<Path> files = Files.list(path)) {
+                return files.filter(Files::isRegularFile).sorted().toList();
+            }
+        }
+
+        Path base = path.getRoot() == null ? Path.of("") : path.getRoot();
+        int depth = 0;
+        for (final Path element : path) {
+            if (depth == 0 && !isGlob(element.toString())) {
+                base = base.resolve(element);
+            } else {
+                depth++;
+            }
+        }
+        if (input.contains("**")) {
+            depth = Integer.MAX_VALUE;
+        }
+
+        final PathMatcher matcher = path.getFileSystem().getPathMatcher("glob:" + input);
+        try (final Stream<Path> files = Files.walk(base, depth)) {
+            return files.filter(file -> Files.isRegularFile(file) && matcher.matches(file)).sorted().toList();
+        }
+    }
+
+    private static boolean isGlob(final String input) {
+        return input.indexOf('*') >= 0 || input.indexOf('?') >= 0 || input.indexOf('[') >= 0 || input.indexOf('{') >= 0;
+    }
+
+    // schedule maps every file into the arena, which must outlive the result as station names point
+    // into the mappings, and returns the maps of the workers and of the gzip files.
+    static List<StationArrayMap> schedule(final List<Path> paths, final Arena arena) throws IOException {
+        if (paths.isEmpty()) {
+            throw new IllegalArgumentException("No input files found");
+        }
+
+        final List<Range[]> tasks = new ArrayList<>();
+        final List<Range> batch = new ArrayList<>();
+        long batchSize = 0;
+        final List<long[]> gzipFiles = new ArrayList<>();
+
+        for (final Path path : paths) {
+            final long base;
+            final long size;
+            try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                size = channel.size();
+                if (size == 0) {
+                    continue;
+                }
+                base = channel.map(FileChannel.MapMode.READ_ONLY, 0, size, arena).address();
+            }
+
+            if (Columnar.matches(base, size)) {
+                throw new IllegalArgumentException("Columnar files are read one at a time: " + path);
+            }
+            if (Gzip.matches(base, size)) {
+                gzipFiles.add(new long[]{base, size});
+                continue;
+            }
+
+            final long segmentSize = CalculateAverage.SEGMENT_SIZE;
+            if (size >= segmentSize) {
+                for (long from = 0; from < size; from += segmentSize) {
+                    tasks.add(new Range[]{new Range(base, size, from, from + segmentSize)});
+                }
+                continue;
+            }
+
+            if (batchSize + size > segmentSize) {
+                tasks.add(batch.toArray(Range[]::new));
+                batch.clear();
+                batchSize = 0;
+            }
+            batch.add(new Range(base, size, 0, size));
+            batchSize += size;
+        }
+        if (!batch.isEmpty()) {
+            tasks.add(batch.toArray(Range[]::new));
+        }
+
+        final List<StationArrayMap> maps = run(tasks);
+        for (final long[] gzip : gzipFiles) {
+            maps.addAll(Gzip.schedule(gzip[0], gzip[1]));
+        }
+        if (maps.isEmpty()) {
+            maps.add(new StationArrayMap(8192));
+        }
+        return maps;
+    }
+
+    // run has the workers claim tasks from a shared cursor, parsing every range of a task into their map.
+    private static List<StationArrayMap> run(final List<Range[]> tasks) {
+        final List<StationArrayMap> maps = new ArrayList<>();
+        if (tasks.isEmpty()) {
+            return maps;
+        }
+
+        final int workerCount = Math.max(1, Math.min(CalculateAverage.WORKERS, tasks.size()));
+        final AtomicLong cursor = new AtomicLong();
+
+        final List<Future<StationArrayMap>> futures = new ArrayList<>(workerCount);
+        try (final ExecutorService pool = Executors.newFixedThreadPool(workerCount)) {
+            for (int i = 0; i < workerCount; i++) {
+                futures.add(pool.submit(() -> {
+                    final StationArrayMap stations = new StationArrayMap(8192);
+                    long task;
+                    while ((task = cursor.getAndIncrement()) < tasks.size()) {
+                        for (final Range range : tasks.get((int) task)) {
+                            final long end = range.base + range.size;
+                            CalculateAverage.process(stations,
+                                    CalculateAverage.lineStart(range.base, end, range.base + range.from),
+                                    CalculateAverage.lineStart(range.base, end, range.base + range.to));
+                        }
+                    }
+                    return stations;
+                }));
+            }
+
+            for (final Future<StationArrayMap> future : futures) {
+                maps.add(future.get());
+            }
+            return maps;
+        } catch (final InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Range is the part of a mapped file from one nominal offset to another, moved forward to line starts when parsed.
+    private record Range(long base, long size, long from, long to) {}
+
+}
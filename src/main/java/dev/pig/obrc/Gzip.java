@@ -0,0 +1,320 @@
+package dev.pig.obrc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import static dev.pig.obrc.Memory.UNSAFE;
+
+// Gzip aggregates gzip compressed input straight from the mapping, inflating it in memory.
+// Input whose members all record their compressed size, as written by bgzip, is split by member
+// and inflated in parallel. Any other input is inflated on one thread feeding the parsers.
+final class Gzip {
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    // Header and trailer sizes of a member, without optional fields
+    private static final int HEADER_SIZE = 10;
+    private static final int TRAILER_SIZE = 8;
+
+    // Room past the end of inflated data for the 8 byte reads of the kernel
+    private static final int PADDING = 64;
+
+    // Largest slice of compressed input given to the inflater, or of inflated member held, at once.
+    // A ByteBuffer wraps at most 2 GiB.
+    private static final long MAX_SLICE = 1L << 30;
+
+    private Gzip() {}
+
+    // matches returns whether the mapped file starts with a gzip member.
+    static boolean matches(final long base, final long size) {
+        return size >= HEADER_SIZE + TRAILER_SIZE
+                && UNSAFE.getByte(base) == (byte) 0x1F && UNSAFE.getByte(base + 1) == (byte) 0x8B
+                && UNSAFE.getByte(base + 2) == 8;
+    }
+
+    // schedule inflates and parses the mapped gzip file, returning a map per worker.
+    static List<StationArrayMap> schedule(final long base, final long size) throws IOException {
+        final MemorySegment input = MemorySegment.ofAddress(base).reinterpret(size);
+
+        final long[] members = members(base, size);
+        if (members == null) {
+            return StreamParser.parse(new Inflating(input), CalculateAverage.SEGMENT_SIZE);
+        }
+        return inflateMembers(input, members);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // Members in parallel
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // members returns the offset of every member followed by the size of the input, or null if
+    // any member is missing the BGZF extra field that holds its compressed size.
+    private static long[] members(final long base, final long size) {
+        final List<Long> offsets = new ArrayList<>();
+        long offset = 0;
+        while (offset < size) {
+            if (size - offset < HEADER_SIZE + TRAILER_SIZE || !matches(base + offset, size - offset)) {
+                return null;
+            }
+            final long blockSize = blockSize(base + offset, size - offset);
+            if (blockSize <= 0 || offset + blockSize > size) {
+                return null;
+            }
+            offsets.add(offset);
+            offset += blockSize;
+        }
+
+        final long[] members = new long[offsets.size() + 1];
+        for (int i = 0; i < offsets.size(); i++) {
+            members[i] = offsets.get(i);
+        }
+        members[offsets.size()] = size;
+        return members;
+    }
+
+    // blockSize returns the size of the member from its BGZF extra subfield, or 0 if it has none.
+    private static long blockSize(final long address, final long available) {
+        if ((UNSAFE.getByte(address + 3) & FEXTRA) == 0) {
+            return 0;
+        }
+        final int extraLength = UNSAFE.getShort(address + HEADER_SIZE) & 0xFFFF;
+        if (HEADER_SIZE + 2 + extraLength > available) {
+            return 0;
+        }
+
+        long field = address + HEADER_SIZE + 2;
+        final long end = field + extraLength;
+        while (field + 4 <= end) {
+            final int fieldLength = UNSAFE.getShort(field + 2) & 0xFFFF;
+            if (UNSAFE.getByte(field) == 'B' && UNSAFE.getByte(field + 1) == 'C' && fieldLength == 2) {
+                return (UNSAFE.getShort(field + 4) & 0xFFFF) + 1;
+            }
+            field += 4 + fieldLength;
+        }
+        return 0;
+    }
+
+    // inflateMembers has the workers claim members from a shared cursor, inflate each into a reusable
+    // direct buffer and parse the lines wholly inside it. The partial lines at the edges of each member
+    // are kept aside and joined up with their neighbours once every member is done.
+    private static List<StationArrayMap> inflateMembers(final MemorySegment input, final long[] members) {
+        final int memberCount = members.length - 1;
+        final int workerCount = Math.max(1, Math.min(CalculateAverage.WORKERS, memberCount));
+        final AtomicLong cursor = new AtomicLong();
+
+        // Bytes before the first and after the last line end of each member, or the whole member if it has none
+        final byte[][] heads = new byte[memberCount][];
+        final byte[][] tails = new byte[memberCount][];
+
+        final List<Future<StationArrayMap>> futures = new ArrayList<>(workerCount);
+        try (final ExecutorService pool = Executors.newFixedThreadPool(workerCount)) {
+            for (int i = 0; i < workerCount; i++) {
+                futures.add(pool.submit(() -> {
+                    // The output buffer is reused, so names are copied out of it
+                    final StationArrayMap stations = new StationArrayMap(8192, true);
+                    final Inflater inflater = new Inflater(true);
+                    MemorySegment output = MemorySegment.NULL;
+                    try {
+                        long member;
+                        while ((member = cursor.getAndIncrement()) < memberCount) {
+                            final long start = members[(int) member];
+                            final long end = members[(int) member + 1];
+
+                            // The trailer records the inflated size, modulo 2^32
+                            final long inflatedSize = UNSAFE.getInt(input.address() + end - 4) & 0xFFFFFFFFL;
+                            if (inflatedSize > MAX_SLICE) {
+                                throw new ZipException("Gzip member at offset " + start + " inflates to more than " + MAX_SLICE + " bytes");
+                            }
+                            if (output.byteSize() < inflatedSize + PADDING) {
+                                output = Arena.ofAuto().allocate(inflatedSize + PADDING, 8);
+                            }
+
+                            // The member is at most 64 KiB, as its BGZF field records it in 16 bits
+                            final long data = start + headerSize(input.address() + start);
+                            inflater.reset();
+                            inflater.setInput(input.asSlice(data, end - TRAILER_SIZE - data).asByteBuffer());
+                            final ByteBuffer view = output.asSlice(0, inflatedSize).asByteBuffer();
+                            while (!inflater.finished()) {
+                                if (inflater.inflate(view) == 0 && !inflater.finished()) {
+                                    if (inflater.needsInput()) {
+                                        throw new ZipException("Truncated gzip member at offset " + start);
+                                    }
+                                    if (!view.hasRemaining()) {
+                                        throw new ZipException("Gzip member at offset " + start + " inflates past its recorded size");
+                                    }
+                                }
+                            }
+                            if (view.position() != inflatedSize) {
+                                throw new ZipException("Gzip member at offset " + start + " inflates short of its recorded size");
+                            }
+
+                            parseMember(stations, output.address(), view.position(), heads, tails, (int) member);
+                        }
+                        return stations;
+                    } finally {
+                        inflater.end();
+                    }
+                }));
+            }
+
+            final List<StationArrayMap> maps = new ArrayList<>(workerCount);
+            for (final Future<StationArrayMap> future : futures) {
+                maps.add(future.get());
+            }
+            maps.add(joinEdges(heads, tails));
+            return maps;
+        } catch (final InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // parseMember parses the whole lines of an inflated member and keeps its partial edges.
+    private static void parseMember(final StationArrayMap stations, final long address, final int length,
+                                    final byte[][] heads, final byte[][] tails, final int member) {
+        int first = 0;
+        while (first < length && UNSAFE.getByte(address + first) != '\n') {
+            first++;
+        }
+        if (first == length) {
+            heads[member] = copy(address, length);
+            return;
+        }
+
+        int last = length;
+        while (UNSAFE.getByte(address + last - 1) != '\n') {
+            last--;
+        }
+
+        heads[member] = copy(address, first + 1);
+        tails[member] = copy(address + last, length - last);
+        CalculateAverage.process(stations, address + first + 1, address + last);
+    }
+
+    // joinEdges stitches the tail of each member to the head of the next and parses the joined lines.
+    // A member without a line end continues the line of the one before it.
+    private static StationArrayMap joinEdges(final byte[][] heads, final byte[][] tails) {
+        final ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        for (int member = 0; member < heads.length; member++) {
+            lines.writeBytes(heads[member]);
+            if (tails[member] != null) {
+                lines.writeBytes(tails[member]);
+            }
+        }
+        if (lines.size() > 0 && lines.toByteArray()[lines.size() - 1] != '\n') {
+            lines.write('\n');
+        }
+
+        final byte[] bytes = lines.toByteArray();
+        final MemorySegment segment = Arena.ofAuto().allocate(bytes.length + PADDING, 8);
+        UNSAFE.copyMemory(bytes, Memory.BYTE_ARRAY_OFFSET, null, segment.address(), bytes.length);
+
+        final StationArrayMap stations = new StationArrayMap(8192, true);
+        CalculateAverage.processChunk(stations, segment.address(), segment.address() + bytes.length);
+        return stations;
+    }
+
+    private static byte[] copy(final long address, final int length) {
+        final byte[] bytes = new byte[length];
+        UNSAFE.copyMemory(null, address, bytes, Memory.BYTE_ARRAY_OFFSET, length);
+        return bytes;
+    }
+
+    // headerSize returns the size of the member header at the address, including its optional fields.
+    private static long headerSize(final long address) {
+        final int flags = UNSAFE.getByte(address + 3);
+        long size = HEADER_SIZE;
+        if ((flags & FEXTRA) != 0) {
+            size += 2 + (UNSAFE.getShort(address + size) & 0xFFFF);
+        }
+        if ((flags & FNAME) != 0) {
+            while (UNSAFE.getByte(address + size++) != 0) {}
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (UNSAFE.getByte(address + size++) != 0) {}
+        }
+        if ((flags & FHCRC) != 0) {
+            size += 2;
+        }
+        return size;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // Single stream
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // Inflating inflates the members of the input one after another, as a source for the stream parser.
+    private static final class Inflating implements StreamParser.Source {
+
+        private final MemorySegment input;
+        private final Inflater inflater = new Inflater(true);
+
+        // Offset of the compressed data of the current member, and of the end of the input given to the inflater
+        private long data;
+        private long fed;
+
+        private Inflating(final MemorySegment input) {
+            this.input = input;
+            this.start(0);
+        }
+
+        private void start(final long member) {
+            this.data = member + headerSize(this.input.address() + member);
+            this.fed = this.data;
+            this.inflater.reset();
+            this.feed();
+        }
+
+        // feed gives the inflater the next slice of the input.
+        private void feed() {
+            final long length = Math.min(MAX_SLICE, this.input.byteSize() - this.fed);
+            this.inflater.setInput(this.input.asSlice(this.fed, length).asByteBuffer());
+            this.fed += length;
+        }
+
+        @Override
+        public int read(final ByteBuffer buffer) throws IOException {
+            try {
+                while (true) {
+                    if (this.inflater.finished()) {
+                        final long next = this.data + this.inflater.getBytesRead() + TRAILER_SIZE;
+                        if (!matches(this.input.address() + next, this.input.byteSize() - next)) {
+                            this.inflater.end();
+                            return -1;
+                        }
+                        this.start(next);
+                    }
+
+                    final int inflated = this.inflater.inflate(buffer);
+                    if (inflated > 0) {
+                        return inflated;
+                    }
+                    if (this.inflater.needsInput()) {
+                        if (this.fed == this.input.byteSize()) {
+                            throw new ZipException("Truncated gzip input");
+                        }
+                        this.feed();
+                    }
+                }
+            } catch (final DataFormatException e) {
+                throw new ZipException(e.getMessage());
+            }
+        }
+    }
+
+}
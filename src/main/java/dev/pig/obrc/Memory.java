@@ -0,0 +1,26 @@
+package dev.pig.obrc;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+
+// Memory holds the Unsafe instance used for raw reads of the mapped input.
+final class Memory {
+
+    static final Unsafe UNSAFE = getUnsafe();
+
+    static final long BYTE_ARRAY_OFFSET = Unsafe.ARRAY_BYTE_BASE_OFFSET;
+
+    private Memory() {}
+
+    private static Unsafe getUnsafe() {
+        try {
+            final Field f = Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            return (Unsafe) f.get(null);
+        } catch (final NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
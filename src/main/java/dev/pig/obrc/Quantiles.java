@@ -0,0 +1,325 @@
+package dev.pig.obrc;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+// Quantiles tracks the distribution of a station's readings, in tenths, to answer percentiles.
+// Only one implementation is used per run, so the calls from the map stay monomorphic and are inlined.
+interface Quantiles {
+
+    // Implementations, as recorded in checkpoints
+    byte EXACT = 1;
+    byte SKETCH = 2;
+
+    void add(int temp);
+
+    // merge adds the readings of the other, which must be of the same implementation.
+    void merge(Quantiles other);
+
+    // percentile returns the nearest rank percentile of the count readings in tenths,
+    // exact or to within the sketch accuracy.
+    long percentile(long count, double percent);
+
+    void write(DataOutput out) throws IOException;
+
+    // create returns an empty instance of the implementation chosen for the run.
+    static Quantiles create() {
+        return CalculateAverage.QUANTILES == SKETCH ? new Sketch() : new Histogram();
+    }
+
+    // read returns an instance of the implementation chosen for the run, as written by write.
+    static Quantiles read(final DataInput in) throws IOException {
+        final Quantiles quantiles = create();
+        if (quantiles instanceof Histogram histogram) {
+            histogram.read(in);
+        } else {
+            ((Sketch) quantiles).read(in);
+        }
+        return quantiles;
+    }
+
+    // rank returns the 1 based rank of the percentile among count readings.
+    static long rank(final long count, final double percent) {
+        return Math.max(1, (long) Math.ceil(percent / 100.0 * count));
+    }
+
+    // Histogram counts the readings of every temperature from -99.9 to 99.9, one bin per tenth, so
+    // percentiles are exact. Each instance takes 8 KB whatever the number of readings.
+    final class Histogram implements Quantiles {
+
+        private static final int BINS = 1999;
+        private static final int OFFSET = 999;
+
+        private final int[] bins = new int[BINS];
+
+        @Override
+        public void add(final int temp) {
+            this.bins[temp + OFFSET]++;
+        }
+
+        @Override
+        public void merge(final Quantiles other) {
+            final Histogram histogram = (Histogram) other;
+            for (int bin = 0; bin < BINS; bin++) {
+                this.bins[bin] += histogram.bins[bin];
+            }
+        }
+
+        @Override
+        public long percentile(final long count, final double percent) {
+            final long rank = rank(count, percent);
+            long seen = 0;
+            for (int bin = 0; bin < BINS; bin++) {
+                seen += this.bins[bin];
+                if (seen >= rank) {
+                    return bin - OFFSET;
+                }
+            }
+            return BINS - 1 - OFFSET;
+        }
+
+        // write writes the non zero bins, as a bin count and pairs of bin and readings.
+        @Override
+        public void write(final DataOutput out) throws IOException {
+            int used = 0;
+            for (final int readings : this.bins) {
+                used += readings == 0 ? 0 : 1;
+            }
+            out.writeShort(used);
+            for (int bin = 0; bin < BINS; bin++) {
+                if (this.bins[bin] != 0) {
+                    out.writeShort(bin);
+                    out.writeInt(this.bins[bin]);
+                }
+            }
+        }
+
+        private void read(final DataInput in) throws IOException {
+            for (int used = in.readUnsignedShort(); used > 0; used--) {
+                final int bin = in.readUnsignedShort();
+                this.bins[bin] = in.readInt();
+            }
+        }
+    }
+
+    // Sketch is a DDSketch, which buckets readings by the logarithm of their magnitude so every percentile
+    // is within a relative accuracy of the true value. Bucket i holds magnitudes in (gamma^(i-1), gamma^i]
+    // with gamma = (1 + accuracy) / (1 - accuracy), so the number of buckets, and the memory, is set by the
+    // accuracy and the range of the readings rather than their count.
+    // Buckets are keyed -(i + 1) for negative readings, 0 for zero and i + 1 for positive ones, so keys order
+    // as the readings do. A sketch starts with a short list of the keys it has seen, so the many stations with
+    // few readings stay small. Past SPARSE_KEYS it moves to an array of counts covering the range of keys,
+    // capped at MAX_KEYS by folding the lowest keys together.
+    final class Sketch implements Quantiles {
+
+        // Relative accuracy, read here rather than with the other options so runs without a sketch never parse it
+        static final double ACCURACY = Double.parseDouble(System.getProperty("obrc.sketchAccuracy", "0.01"));
+
+        private static final double GAMMA = (1 + ACCURACY) / (1 - ACCURACY);
+        private static final double MULTIPLIER = 1 / Math.log(GAMMA);
+        private static final int SPARSE_KEYS = 64;
+        private static final int MAX_KEYS = 2048;
+
+        // Key of each reading within the table, to save a logarithm per reading
+        private static final int TABLE_RANGE = 2047;
+        private static final int[] KEYS = new int[2 * TABLE_RANGE + 1];
+
+        static {
+            for (int temp = -TABLE_RANGE; temp <= TABLE_RANGE; temp++) {
+                KEYS[temp + TABLE_RANGE] = computeKey(temp);
+            }
+        }
+
+        // Keys seen and their counts, in order of first sight, until the sketch turns dense
+        private int[] keys = new int[4];
+        private long[] keyCounts = new long[4];
+        private int size;
+
+        // Counts of a contiguous range of keys starting at the offset, null while sparse
+        private long[] counts;
+        private int offset;
+
+        @Override
+        public void add(final int temp) {
+            this.add(key(temp), 1);
+        }
+
+        private void add(final int key, final long readings) {
+            if (this.counts != null) {
+                this.addDense(key, readings);
+                return;
+            }
+
+            for (int i = 0; i < this.size; i++) {
+                if (this.keys[i] == key) {
+                    this.keyCounts[i] += readings;
+                    return;
+                }
+            }
+
+            if (this.size == this.keys.length) {
+                if (this.size == SPARSE_KEYS) {
+                    this.densify();
+                    this.addDense(key, readings);
+                    return;
+                }
+                this.keys = Arrays.copyOf(this.keys, this.size * 2);
+                this.keyCounts = Arrays.copyOf(this.keyCounts, this.size * 2);
+            }
+            this.keys[this.size] = key;
+            this.keyCounts[this.size] = readings;
+            this.size++;
+        }
+
+        private void densify() {
+            int low = Integer.MAX_VALUE;
+            int high = Integer.MIN_VALUE;
+            for (int i = 0; i < this.size; i++) {
+                low = Math.min(low, this.keys[i]);
+                high = Math.max(high, this.keys[i]);
+            }
+
+            this.offset = Math.max(low, high - MAX_KEYS + 1);
+            this.counts = new long[high - this.offset + 1];
+            for (int i = 0; i < this.size; i++) {
+                this.counts[Math.max(0, this.keys[i] - this.offset)] += this.keyCounts[i];
+            }
+            this.keys = null;
+            this.keyCounts = null;
+            this.size = 0;
+        }
+
+        private void addDense(final int key, final long readings) {
+            int i = key - this.offset;
+            if (i < 0 || i >= this.counts.length) {
+                this.cover(key);
+                i = Math.max(0, key - this.offset);
+            }
+            this.counts[i] += readings;
+        }
+
+        // cover extends the dense range to the key, leaving spare room on the side being grown.
+        // Past MAX_KEYS the lowest keys are folded into the new lowest.
+        private void cover(final int key) {
+            final int low = Math.min(this.offset, key);
+            final int high = Math.max(this.offset + this.counts.length - 1, key);
+            final int length = Math.min(MAX_KEYS, Math.max(high - low + 1, this.counts.length * 2));
+            final int start = key < this.offset ? high - length + 1 : Math.max(low, high - MAX_KEYS + 1);
+            if (start == this.offset && length == this.counts.length) {
+                return;
+            }
+
+            final long[] counts = new long[length];
+            for (int i = 0; i < this.counts.length; i++) {
+                counts[Math.max(0, this.offset + i - start)] += this.counts[i];
+            }
+            this.counts = counts;
+            this.offset = start;
+        }
+
+        private static int key(final int temp) {
+            return temp >= -TABLE_RANGE && temp <= TABLE_RANGE ? KEYS[temp + TABLE_RANGE] : computeKey(temp);
+        }
+
+        private static int computeKey(final int temp) {
+            if (temp == 0) {
+                return 0;
+            }
+            final int key = (int) Math.ceil(Math.log(Math.abs(temp)) * MULTIPLIER) + 1;
+            return temp < 0 ? -key : key;
+        }
+
+        // value returns the estimate for the key, equally far in relative terms from both bounds of its bucket.
+        private static long value(final int key) {
+            if (key == 0) {
+                return 0;
+            }
+            final long magnitude = Math.round(2 * Math.pow(GAMMA, Math.abs(key) - 1) / (GAMMA + 1));
+            return key < 0 ? -magnitude : magnitude;
+        }
+
+        @Override
+        public void merge(final Quantiles other) {
+            final Sketch sketch = (Sketch) other;
+            if (sketch.counts == null) {
+                for (int i = 0; i < sketch.size; i++) {
+                    this.add(sketch.keys[i], sketch.keyCounts[i]);
+                }
+                return;
+            }
+            for (int i = 0; i < sketch.counts.length; i++) {
+                if (sketch.counts[i] != 0) {
+                    this.add(sketch.offset + i, sketch.counts[i]);
+                }
+            }
+        }
+
+        @Override
+        public long percentile(final long count, final double percent) {
+            final long rank = rank(count, percent);
+            long seen = 0;
+
+            if (this.counts == null) {
+                // Pack each key above its index, so sorting orders the list by key
+                final long[] order = new long[this.size];
+                for (int i = 0; i < this.size; i++) {
+                    order[i] = ((long) this.keys[i] << 32) | i;
+                }
+                Arrays.sort(order);
+                for (final long packed : order) {
+                    seen += this.keyCounts[(int) packed];
+                    if (seen >= rank) {
+                        return value((int) (packed >> 32));
+                    }
+                }
+                return this.size == 0 ? 0 : value((int) (order[this.size - 1] >> 32));
+            }
+
+            for (int i = 0; i < this.counts.length; i++) {
+                seen += this.counts[i];
+                if (seen >= rank) {
+                    return value(this.offset + i);
+                }
+            }
+            return value(this.offset + this.counts.length - 1);
+        }
+
+        // write writes the keys and counts of the sketch, sparse or dense.
+        @Override
+        public void write(final DataOutput out) throws IOException {
+            out.writeBoolean(this.counts != null);
+            if (this.counts == null) {
+                out.writeInt(this.size);
+                for (int i = 0; i < this.size; i++) {
+                    out.writeInt(this.keys[i]);
+                    out.writeLong(this.keyCounts[i]);
+                }
+                return;
+            }
+            out.writeInt(this.offset);
+            out.writeInt(this.counts.length);
+            for (final long readings : this.counts) {
+                out.writeLong(readings);
+            }
+        }
+
+        private void read(final DataInput in) throws IOException {
+            if (!in.readBoolean()) {
+                for (int i = in.readInt(); i > 0; i--) {
+                    this.add(in.readInt(), in.readLong());
+                }
+                return;
+            }
+            this.keys = null;
+            this.keyCounts = null;
+            this.offset = in.readInt();
+            this.counts = new long[in.readInt()];
+            for (int i = 0; i < this.counts.length; i++) {
+                this.counts[i] = in.readLong();
+            }
+        }
+    }
+
+}
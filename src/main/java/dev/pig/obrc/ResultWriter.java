@@ -0,0 +1,148 @@
+package dev.pig.obrc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static dev.pig.obrc.Memory.UNSAFE;
+
+// ResultWriter formats the sorted result, {name=min/mean/max, ...}, straight into a byte buffer.
+// Any percentiles being kept follow the max, {name=min/mean/max/p50/p95, ...}.
+// Names are copied from wherever the map holds them and temperatures written from their integer tenths,
+// so nothing is created per station. The buffer is kept between results.
+final class ResultWriter {
+
+    private byte[] buffer = new byte[64 * 1024];
+    private int position;
+
+    // format returns the sorted result string of the map.
+    String format(final StationArrayMap stations) {
+        this.write(stations);
+        return new String(this.buffer, 0, this.position, StandardCharsets.UTF_8);
+    }
+
+    // writeTo writes the sorted result of the map to the stream, without a trailing new line.
+    void writeTo(final StationArrayMap stations, final OutputStream out) throws IOException {
+        this.write(stations);
+        out.write(this.buffer, 0, this.position);
+    }
+
+    private void write(final StationArrayMap stations) {
+        final Entries entries = new Entries(stations.size());
+        stations.forEachEntry(entries);
+        final int[] order = StationSort.sort(entries.addresses, entries.lengths);
+
+        this.position = 0;
+        this.put('{');
+        for (int i = 0; i < order.length; i++) {
+            final int e = order[i];
+            final int length = entries.lengths[e];
+
+            // Name, separators and three temperatures of up to 20 bytes each
+            this.ensure(length + 66);
+            if (i > 0) {
+                this.put(',');
+                this.put(' ');
+            }
+            UNSAFE.copyMemory(null, entries.addresses[e], this.buffer, Memory.BYTE_ARRAY_OFFSET + this.position, length);
+            this.position += length;
+            this.put('=');
+            this.putTenths(entries.mins[e]);
+            this.put('/');
+            this.putTenths(mean(entries.sums[e], entries.counts[e]));
+            this.put('/');
+            this.putTenths(entries.maxs[e]);
+            for (final double percentile : CalculateAverage.PERCENTILES) {
+                this.ensure(21);
+                this.put('/');
+                this.putTenths(entries.quantiles[e].percentile(entries.counts[e], percentile));
+            }
+        }
+        this.ensure(1);
+        this.put('}');
+    }
+
+    // mean returns the mean in tenths rounded as Calculate_baseline rounds it, in doubles: its sum rounded to tenths,
+    // which is the sum here, divided by the count and rounded to tenths again. The quotient is not exact, so ties do
+    // not always round up, exact integer rounding would differ on some of them.
+    static long mean(final long sum, final long count) {
+        return Math.round(sum / 10.0 / count * 10.0);
+    }
+
+    // putTenths writes the tenths as a decimal with one fractional digit, as Double.toString of the value / 10.0.
+    private void putTenths(long tenths) {
+        if (tenths < 0) {
+            this.put('-');
+            tenths = -tenths;
+        }
+
+        final long whole = tenths / 10;
+        if (whole == 0) {
+            this.put('0');
+        } else {
+            final int start = this.position;
+            for (long w = whole; w > 0; w /= 10) {
+                this.put((char) ('0' + w % 10));
+            }
+            // Digits were written lowest first
+            for (int i = start, j = this.position - 1; i < j; i++, j--) {
+                final byte b = this.buffer[i];
+                this.buffer[i] = this.buffer[j];
+                this.buffer[j] = b;
+            }
+        }
+        this.put('.');
+        this.put((char) ('0' + tenths % 10));
+    }
+
+    private void put(final char c) {
+        this.buffer[this.position++] = (byte) c;
+    }
+
+    private void ensure(final int bytes) {
+        if (this.position + bytes > this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.position + bytes));
+        }
+    }
+
+    // Entries holds the names and aggregates of the stations in columns, to be sorted by index.
+    private static final class Entries implements StationArrayMap.EntryConsumer {
+
+        private final long[] addresses;
+        private final int[] lengths;
+        private final long[] counts;
+        private final long[] sums;
+        private final long[] mins;
+        private final long[] maxs;
+        private final Quantiles[] quantiles;
+        private int size;
+
+        private Entries(final int capacity) {
+            this.addresses = new long[capacity];
+            this.lengths = new int[capacity];
+            this.counts = new long[capacity];
+            this.sums = new long[capacity];
+            this.mins = new long[capacity];
+            this.maxs = new long[capacity];
+            // Left null without percentiles, so Quantiles is never loaded
+            this.quantiles = CalculateAverage.PERCENTILES.length > 0 ? new Quantiles[capacity] : null;
+        }
+
+        @Override
+        public void accept(final long address, final int length, final long count, final long sum,
+                           final long min, final long max, final Quantiles quantiles) {
+            this.addresses[this.size] = address;
+            this.lengths[this.size] = length;
+            this.counts[this.size] = count;
+            this.sums[this.size] = sum;
+            this.mins[this.size] = min;
+            this.maxs[this.size] = max;
+            if (this.quantiles != null) {
+                this.quantiles[this.size] = quantiles;
+            }
+            this.size++;
+        }
+    }
+
+}
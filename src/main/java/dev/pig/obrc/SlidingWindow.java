@@ -0,0 +1,79 @@
+package dev.pig.obrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// SlidingWindow aggregates a file without ever mapping all of it, for files larger than memory.
+// Workers claim fixed size windows from a shared cursor, map each on its own, parse it into a map
+// that copies station names on first sight and unmap it again before claiming the next. At most one
+// window per worker is mapped at a time, so the mapped bytes stay under the cap whatever the file size.
+final class SlidingWindow {
+
+    // Mapped past the end of each window for the line running over its end, and the 8 byte reads of the kernel
+    private static final long MARGIN = 4096;
+
+    private SlidingWindow() {}
+
+    // matches returns whether the input starting at the address can be read in windows, only text can.
+    static boolean matches(final long address, final long size) {
+        return !Columnar.matches(address, size) && !Gzip.matches(address, size);
+    }
+
+    // schedule parses the file of the size in windows, keeping at most maxMapped bytes mapped, and returns
+    // a map per worker. The maps own their names, so they outlive every window.
+    static List<StationArrayMap> schedule(final FileChannel channel, final long size, final long maxMapped) {
+        final int workerCount = Math.max(1, CalculateAverage.WORKERS);
+        final long windowSize = maxMapped / workerCount - MARGIN - 1;
+        if (windowSize < 1 << 20) {
+            throw new IllegalArgumentException("obrc.maxMapped of " + maxMapped + " bytes is too small for " + workerCount + " workers");
+        }
+        final long windowCount = (size + windowSize - 1) / windowSize;
+        final AtomicLong cursor = new AtomicLong();
+
+        final List<Future<StationArrayMap>> futures = new ArrayList<>(workerCount);
+        try (final ExecutorService pool = Executors.newFixedThreadPool(workerCount)) {
+            for (int i = 0; i < workerCount; i++) {
+                futures.add(pool.submit(() -> {
+                    final StationArrayMap stations = new StationArrayMap(8192, true);
+                    long window;
+                    while ((window = cursor.getAndIncrement()) < windowCount) {
+                        parse(channel, size, window * windowSize, Math.min(size, (window + 1) * windowSize), stations);
+                    }
+                    return stations;
+                }));
+            }
+
+            final List<StationArrayMap> maps = new ArrayList<>(workerCount);
+            for (final Future<StationArrayMap> future : futures) {
+                maps.add(future.get());
+            }
+            return maps;
+        } catch (final InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // parse maps the window from one byte before its start, to find whether a line starts there, to the margin
+    // past its end and parses the lines starting within it.
+    private static void parse(final FileChannel channel, final long size, final long from, final long to,
+                              final StationArrayMap stations) throws IOException {
+        final long offset = Math.max(0, from - 1);
+        final long length = Math.min(size, to + MARGIN) - offset;
+
+        try (final Arena arena = Arena.ofConfined()) {
+            final long base = channel.map(FileChannel.MapMode.READ_ONLY, offset, length, arena).address();
+            final long start = CalculateAverage.lineStart(base, base + length, base + from - offset);
+            final long end = to == size ? base + length : CalculateAverage.lineStart(base, base + length, base + to - offset);
+            CalculateAverage.process(stations, start, end);
+        }
+    }
+
+}
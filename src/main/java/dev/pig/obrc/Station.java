@@ -0,0 +1,6 @@
+package dev.pig.obrc;
+
+// Station is the final aggregate of a station's readings, all temperatures are in tenths of a degree.
+// The quantiles are null when percentiles are not being kept.
+record Station(long count, long sum, long min, long max, Quantiles quantiles) {
+}
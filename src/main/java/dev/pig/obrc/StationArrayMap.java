@@ -0,0 +1,404 @@
+package dev.pig.obrc;
+
+import sun.misc.Unsafe;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+
+import static dev.pig.obrc.Memory.UNSAFE;
+
+// StationArrayMap is a linear probe map of station name to readings, flattened into a single long array.
+// Each entry is one 64 byte stride holding the hash, the name and the aggregates side by side, so a lookup
+// for a name of up to 16 bytes touches a single cache line and nothing is allocated per reading.
+// The map doubles once it is half full, the hash must cover the whole name to keep probes short.
+class StationArrayMap {
+
+    // Entry layout, as offsets into the stride
+    private static final int HEADER = 0;    // name length in the high 32 bits, hash in the low 32 bits, 0 if empty
+    private static final int NAME_0 = 1;    // name bytes 0-7, zero padded
+    private static final int NAME_1 = 2;    // name bytes 8-15, zero padded
+    private static final int ADDRESS = 3;   // address of the full name, only read for names longer than 16 bytes
+    private static final int COUNT = 4;
+    private static final int SUM = 5;
+    private static final int MIN = 6;
+    private static final int MAX = 7;
+    private static final int STRIDE = 8;
+
+    // Largest capacity whose entries still fit in a single array
+    static final int MAX_CAPACITY = 1 << 27;
+
+    // Size of the blocks owned names are copied into
+    private static final int NAME_BLOCK = 64 * 1024;
+
+    private int mask;
+    private long[] entries;
+    private int size;
+
+    // Quantiles of each entry by slot, null unless percentiles are kept
+    private Quantiles[] quantiles;
+
+    // Whether every name is copied, otherwise names are read from the input in place
+    private final boolean ownNames;
+    // Blocks holding copies of the names
+    private final List<MemorySegment> nameBlocks = new ArrayList<>();
+    private long nameHead;
+    private long nameEnd;
+
+    StationArrayMap(final int capacity) {
+        this(capacity, false);
+    }
+
+    // StationArrayMap with ownNames copies each name out of the input on first sight,
+    // so the map stays valid once the memory the readings were parsed from is released.
+    StationArrayMap(final int capacity, final boolean ownNames) {
+        this.mask = capacity - 1;
+        this.entries = new long[capacity * STRIDE];
+        this.quantiles = CalculateAverage.PERCENTILES.length > 0 ? new Quantiles[capacity] : null;
+        this.ownNames = ownNames;
+    }
+
+    // add records a reading against the station name, creating the entry on first sight. It returns false,
+    // recording nothing, if the name is empty or holds a new line, as only a line that is not well formed gives.
+    boolean add(final long address, final int length, final int hash, final long name0, final long name1, final int temp) {
+        final int e = this.getOrCreate(address, length, hash, name0, name1, false);
+        if (e < 0) {
+            return false;
+        }
+        this.add(e, temp);
+        return true;
+    }
+
+    // addCopy records a reading as add does, but copies the name on first sight even if the map reads names
+    // in place, for a name read from memory that is about to be reused.
+    void addCopy(final long address, final int length, final int hash, final long name0, final long name1, final int temp) {
+        this.add(this.getOrCreate(address, length, hash, name0, name1, true), temp);
+    }
+
+    private void add(final int e, final int temp) {
+        this.entries[e + COUNT]++;
+        this.entries[e + SUM] += temp;
+        this.entries[e + MIN] = Math.min(this.entries[e + MIN], temp);
+        this.entries[e + MAX] = Math.max(this.entries[e + MAX], temp);
+        if (this.quantiles != null) {
+            this.quantiles[e / STRIDE].add(temp);
+        }
+    }
+
+    // getOrCreate returns the offset of the entry for the name, creating it if not present, or -1 if the name is
+    // empty or holds a new line. Names are only checked on first sight, no entry ever holds one.
+    private int getOrCreate(final long address, final int length, final int hash, final long name0, final long name1,
+                            final boolean copy) {
+        final long header = ((long) length << 32) | (hash & 0xFFFFFFFFL);
+
+        int b = (hash ^ (hash >> 13) ^ (hash >> 16)) & this.mask;
+        while (true) {
+            final int e = b * STRIDE;
+            final long h = this.entries[e + HEADER];
+
+            if (h == 0) {
+                return this.create(b, address, length, hash, name0, name1, copy);
+            }
+
+            if (h == header && this.entries[e + NAME_0] == name0 && this.entries[e + NAME_1] == name1
+                    && (length <= 16 || tailEquals(this.entries[e + ADDRESS], address, length))) {
+                return e;
+            }
+
+            b = (b + 1) & this.mask;
+        }
+    }
+
+    // create fills the empty slot with the name, or the slot it moves to if the map grows first, and returns the offset
+    // of the entry, or -1 if the name is refused. Kept out of getOrCreate, so the probe stays small enough to inline.
+    private int create(final int b, final long address, final int length, final int hash, final long name0, final long name1,
+                       final boolean copy) {
+        if (!isName(address, length)) {
+            return -1;
+        }
+        if (this.size >= (this.mask + 1) >> 1 && this.mask + 1 < MAX_CAPACITY) {
+            this.grow();
+            return this.getOrCreate(address, length, hash, name0, name1, copy);
+        }
+
+        final int e = b * STRIDE;
+        this.size++;
+        this.entries[e + HEADER] = ((long) length << 32) | (hash & 0xFFFFFFFFL);
+        this.entries[e + NAME_0] = name0;
+        this.entries[e + NAME_1] = name1;
+        this.entries[e + ADDRESS] = this.ownNames || copy ? this.copyName(address, length) : address;
+        this.entries[e + MIN] = Long.MAX_VALUE;
+        this.entries[e + MAX] = Long.MIN_VALUE;
+        if (this.quantiles != null) {
+            this.quantiles[b] = Quantiles.create();
+        }
+        return e;
+    }
+
+    // isName returns whether the name is not empty and holds no new line.
+    static boolean isName(final long address, final int length) {
+        for (int i = 0; i < length; i++) {
+            if (UNSAFE.getByte(address + i) == '\n') {
+                return false;
+            }
+        }
+        return length > 0;
+    }
+
+    // copyName copies the name into the current block, starting a new one when full, and returns its address.
+    // Blocks are allocated in automatic arenas, they are freed once the map is no longer reachable.
+    private long copyName(final long address, final int length) {
+        // Names are compared 8 bytes at a time, keep room to read past the end
+        final long needed = length + 8L;
+        if (this.nameHead + needed > this.nameEnd) {
+            final long blockSize = Math.max(NAME_BLOCK, needed);
+            final MemorySegment block = Arena.ofAuto().allocate(blockSize);
+            this.nameBlocks.add(block);
+            this.nameHead = block.address();
+            this.nameEnd = this.nameHead + blockSize;
+        }
+
+        final long copy = this.nameHead;
+        UNSAFE.copyMemory(address, copy, length);
+        this.nameHead += length;
+        return copy;
+    }
+
+    // grow doubles the capacity, moving every entry to its slot in the new array.
+    private void grow() {
+        final long[] old = this.entries;
+        final Quantiles[] oldQuantiles = this.quantiles;
+        this.mask = (this.mask << 1) | 1;
+        this.entries = new long[old.length << 1];
+        this.quantiles = oldQuantiles == null ? null : new Quantiles[this.mask + 1];
+
+        for (int o = 0; o < old.length; o += STRIDE) {
+            final long header = old[o + HEADER];
+            if (header == 0) {
+                continue;
+            }
+
+            final int hash = (int) header;
+            int b = (hash ^ (hash >> 13) ^ (hash >> 16)) & this.mask;
+            while (this.entries[b * STRIDE + HEADER] != 0) {
+                b = (b + 1) & this.mask;
+            }
+            System.arraycopy(old, o, this.entries, b * STRIDE, STRIDE);
+            if (oldQuantiles != null) {
+                this.quantiles[b] = oldQuantiles[o / STRIDE];
+            }
+        }
+    }
+
+    void merge(final StationArrayMap other) {
+        // Names the other map copied are read in place, keep its blocks alive with this map
+        if (!this.ownNames) {
+            this.nameBlocks.addAll(other.nameBlocks);
+        }
+        for (int o = 0; o < other.entries.length; o += STRIDE) {
+            final long header = other.entries[o + HEADER];
+            if (header == 0) {
+                continue;
+            }
+
+            final int e = this.getOrCreate(other.entries[o + ADDRESS], (int) (header >>> 32), (int) header,
+                    other.entries[o + NAME_0], other.entries[o + NAME_1], false);
+            this.combine(e, other.entries[o + COUNT], other.entries[o + SUM], other.entries[o + MIN], other.entries[o + MAX],
+                    other.quantiles == null ? null : other.quantiles[o / STRIDE]);
+        }
+    }
+
+    // merge combines the aggregates of the station whose name is at the address into the map.
+    // At least 16 bytes must be readable from the address, whatever the length of the name.
+    void merge(final long address, final int length, final Station station) {
+        final long name0 = UNSAFE.getLong(address) & mask(length);
+        final long name1 = UNSAFE.getLong(address + 8) & mask(length - 8);
+        final int e = this.getOrCreate(address, length, CalculateAverage.hash(address, length, name0, name1), name0, name1, false);
+        this.combine(e, station.count(), station.sum(), station.min(), station.max(), station.quantiles());
+    }
+
+    private void combine(final int e, final long count, final long sum, final long min, final long max, final Quantiles quantiles) {
+        this.entries[e + COUNT] += count;
+        this.entries[e + SUM] += sum;
+        this.entries[e + MIN] = Math.min(this.entries[e + MIN], min);
+        this.entries[e + MAX] = Math.max(this.entries[e + MAX], max);
+        if (this.quantiles != null && quantiles != null) {
+            this.quantiles[e / STRIDE].merge(quantiles);
+        }
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    // forEachEntry passes the name of each entry, in place rather than copied out, and its aggregates to the consumer.
+    void forEachEntry(final EntryConsumer consumer) {
+        for (int e = 0; e < this.entries.length; e += STRIDE) {
+            final long header = this.entries[e + HEADER];
+            if (header == 0) {
+                continue;
+            }
+
+            consumer.accept(this.entries[e + ADDRESS], (int) (header >>> 32),
+                    this.entries[e + COUNT], this.entries[e + SUM], this.entries[e + MIN], this.entries[e + MAX],
+                    this.quantiles == null ? null : this.quantiles[e / STRIDE]);
+        }
+    }
+
+    // Shared is a worker's view of a table every worker adds to at the same time, so there is one entry per
+    // station whatever the number of workers and nothing to merge. Names are claimed with a compare and swap
+    // of the header, which is published once the rest of the entry is written, and readings are added with
+    // atomic updates of the aggregates. The table does not grow, once it is half full the stations it does
+    // not hold yet are kept in the entries of the view itself, merged into the table afterwards.
+    // Percentiles are not supported, their quantiles are not safe to update from more than one worker.
+    static final class Shared extends StationArrayMap {
+
+        // Header of an entry being filled in, a real header never has the top bit set
+        private static final long PENDING = Long.MIN_VALUE;
+
+        // Returned by claim once the table is half full
+        private static final int FULL = -2;
+
+        // Updates the size of the table, which every view adds to
+        private static final VarHandle SIZE;
+
+        static {
+            try {
+                SIZE = MethodHandles.lookup().findVarHandle(StationArrayMap.class, "size", int.class);
+            } catch (final ReflectiveOperationException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private final StationArrayMap table;
+
+        Shared(final StationArrayMap table) {
+            super(8192);
+            this.table = table;
+        }
+
+        @Override
+        boolean add(final long address, final int length, final int hash, final long name0, final long name1, final int temp) {
+            final int e = this.claim(address, length, hash, name0, name1, false);
+            if (e == FULL) {
+                return super.add(address, length, hash, name0, name1, temp);
+            }
+            if (e < 0) {
+                return false;
+            }
+            this.accumulate(e, temp);
+            return true;
+        }
+
+        @Override
+        void addCopy(final long address, final int length, final int hash, final long name0, final long name1, final int temp) {
+            final int e = this.claim(address, length, hash, name0, name1, true);
+            if (e == FULL) {
+                super.addCopy(address, length, hash, name0, name1, temp);
+            } else {
+                this.accumulate(e, temp);
+            }
+        }
+
+        // claim returns the offset of the entry for the name in the table, filling in an empty slot if not present,
+        // -1 if the name is refused or FULL if it is not present and the table is half full. A pending entry is waited
+        // on, it may hold the name.
+        private int claim(final long address, final int length, final int hash, final long name0, final long name1,
+                          final boolean copy) {
+            final long[] entries = this.table.entries;
+            final int mask = this.table.mask;
+            final long header = ((long) length << 32) | (hash & 0xFFFFFFFFL);
+
+            int b = (hash ^ (hash >> 13) ^ (hash >> 16)) & mask;
+            while (true) {
+                final int e = b * STRIDE;
+                long h = UNSAFE.getLongVolatile(entries, offset(e + HEADER));
+
+                if (h == 0) {
+                    if (!isName(address, length)) {
+                        return -1;
+                    }
+                    if ((int) SIZE.getVolatile(this.table) >= (mask + 1) >> 1) {
+                        return FULL;
+                    }
+                    if (UNSAFE.compareAndSwapLong(entries, offset(e + HEADER), 0, PENDING)) {
+                        SIZE.getAndAdd(this.table, 1);
+                        entries[e + NAME_0] = name0;
+                        entries[e + NAME_1] = name1;
+                        // Names copied by the view live in its blocks, merged into the table with the view
+                        entries[e + ADDRESS] = copy ? super.copyName(address, length) : address;
+                        entries[e + MIN] = Long.MAX_VALUE;
+                        entries[e + MAX] = Long.MIN_VALUE;
+                        UNSAFE.putLongVolatile(entries, offset(e + HEADER), header);
+                        return e;
+                    }
+                    h = UNSAFE.getLongVolatile(entries, offset(e + HEADER));
+                }
+                while (h == PENDING) {
+                    Thread.onSpinWait();
+                    h = UNSAFE.getLongVolatile(entries, offset(e + HEADER));
+                }
+
+                if (h == header && entries[e + NAME_0] == name0 && entries[e + NAME_1] == name1
+                        && (length <= 16 || tailEquals(entries[e + ADDRESS], address, length))) {
+                    return e;
+                }
+
+                b = (b + 1) & mask;
+            }
+        }
+
+        // accumulate adds the reading to the aggregates of the entry of the table, the minimum and maximum are only
+        // swapped while the reading still beats them.
+        private void accumulate(final int e, final int temp) {
+            final long[] entries = this.table.entries;
+            UNSAFE.getAndAddLong(entries, offset(e + COUNT), 1);
+            UNSAFE.getAndAddLong(entries, offset(e + SUM), temp);
+
+            long min = UNSAFE.getLongVolatile(entries, offset(e + MIN));
+            while (temp < min && !UNSAFE.compareAndSwapLong(entries, offset(e + MIN), min, temp)) {
+                min = UNSAFE.getLongVolatile(entries, offset(e + MIN));
+            }
+            long max = UNSAFE.getLongVolatile(entries, offset(e + MAX));
+            while (temp > max && !UNSAFE.compareAndSwapLong(entries, offset(e + MAX), max, temp)) {
+                max = UNSAFE.getLongVolatile(entries, offset(e + MAX));
+            }
+        }
+
+        private static long offset(final int index) {
+            return Unsafe.ARRAY_LONG_BASE_OFFSET + ((long) index << 3);
+        }
+    }
+
+    // EntryConsumer receives the address and length of a name and the aggregates of its station,
+    // the quantiles are null unless percentiles are kept.
+    interface EntryConsumer {
+        void accept(long address, int length, long count, long sum, long min, long max, Quantiles quantiles);
+    }
+
+    // mask returns a mask covering the lowest number of bytes of a long, 0 for none and all for 8 or more.
+    static long mask(final int bytes) {
+        if (bytes >= 8) {
+            return -1L;
+        }
+        if (bytes <= 0) {
+            return 0L;
+        }
+        return (1L << (bytes << 3)) - 1;
+    }
+
+    // tailEquals compares two names of the same length from byte 16 onwards, the inline words cover the rest.
+    static boolean tailEquals(final long a, final long b, final int length) {
+        int i = 16;
+        for (; i + 8 <= length; i += 8) {
+            if (UNSAFE.getLong(a + i) != UNSAFE.getLong(b + i)) {
+                return false;
+            }
+        }
+        return i == length || ((UNSAFE.getLong(a + i) ^ UNSAFE.getLong(b + i)) & mask(length - i)) == 0;
+    }
+
+}
@@ -0,0 +1,115 @@
+package dev.pig.obrc;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.List;
+
+import static dev.pig.obrc.Memory.UNSAFE;
+
+// StationDictionary maps station names to dense ids, in the order the names were given.
+// It is built once and then only read, so any number of threads can look names up at the same time.
+// Keys use the same inline layout and hash as StationArrayMap, so names are looked up straight from the input.
+final class StationDictionary {
+
+    // Entry layout, as offsets into the stride
+    private static final int HEADER = 0;    // name length in the high 32 bits, hash in the low 32 bits, 0 if empty
+    private static final int NAME_0 = 1;    // name bytes 0-7, zero padded
+    private static final int NAME_1 = 2;    // name bytes 8-15, zero padded
+    private static final int ADDRESS = 3;   // address of the full name
+    private static final int STRIDE = 4;
+
+    private final int mask;
+    private final long[] entries;
+    private final int[] ids;
+
+    // Names in id order, each followed by 16 readable bytes
+    private final long[] addresses;
+    private final int[] lengths;
+
+    // Keeps the names alive as long as the dictionary
+    private final MemorySegment block;
+
+    // StationDictionary takes the names as their bytes in the input, whether or not they are valid UTF-8.
+    StationDictionary(final List<byte[]> names) {
+        int capacity = 16;
+        while (capacity < names.size() * 2) {
+            capacity <<= 1;
+        }
+        this.mask = capacity - 1;
+        this.entries = new long[capacity * STRIDE];
+        this.ids = new int[capacity];
+        this.addresses = new long[names.size()];
+        this.lengths = new int[names.size()];
+
+        // Copy the names into memory owned by the dictionary, they are compared 8 bytes at a time
+        final byte[][] bytes = names.toArray(new byte[0][]);
+        long total = 16;
+        for (final byte[] name : bytes) {
+            total += name.length;
+        }
+        final MemorySegment block = Arena.ofAuto().allocate(total);
+        this.block = block;
+
+        long offset = 0;
+        for (int id = 0; id < bytes.length; id++) {
+            MemorySegment.copy(bytes[id], 0, block, ValueLayout.JAVA_BYTE, offset, bytes[id].length);
+            final long address = block.address() + offset;
+            final int length = bytes[id].length;
+            this.addresses[id] = address;
+            this.lengths[id] = length;
+
+            final long name0 = UNSAFE.getLong(address) & StationArrayMap.mask(length);
+            final long name1 = UNSAFE.getLong(address + 8) & StationArrayMap.mask(length - 8);
+            final int hash = CalculateAverage.hash(address, length, name0, name1);
+
+            int b = (hash ^ (hash >> 13) ^ (hash >> 16)) & this.mask;
+            while (this.entries[b * STRIDE + HEADER] != 0) {
+                b = (b + 1) & this.mask;
+            }
+            final int e = b * STRIDE;
+            this.entries[e + HEADER] = ((long) length << 32) | (hash & 0xFFFFFFFFL);
+            this.entries[e + NAME_0] = name0;
+            this.entries[e + NAME_1] = name1;
+            this.entries[e + ADDRESS] = address;
+            this.ids[b] = id;
+
+            offset += length;
+        }
+    }
+
+    // id returns the id of the name, or -1 if it is not in the dictionary.
+    int id(final long address, final int length, final int hash, final long name0, final long name1) {
+        final long header = ((long) length << 32) | (hash & 0xFFFFFFFFL);
+
+        int b = (hash ^ (hash >> 13) ^ (hash >> 16)) & this.mask;
+        while (true) {
+            final int e = b * STRIDE;
+            final long h = this.entries[e + HEADER];
+
+            if (h == 0) {
+                return -1;
+            }
+            if (h == header && this.entries[e + NAME_0] == name0 && this.entries[e + NAME_1] == name1
+                    && (length <= 16 || StationArrayMap.tailEquals(this.entries[e + ADDRESS], address, length))) {
+                return this.ids[b];
+            }
+
+            b = (b + 1) & this.mask;
+        }
+    }
+
+    int size() {
+        return this.addresses.length;
+    }
+
+    // address returns the address of the name with the id, at least 16 bytes are readable from it.
+    long address(final int id) {
+        return this.addresses[id];
+    }
+
+    int length(final int id) {
+        return this.lengths[id];
+    }
+
+}
@@ -0,0 +1,120 @@
+package dev.pig.obrc;
+
+import java.util.Arrays;
+
+import static dev.pig.obrc.Memory.UNSAFE;
+
+// StationSort orders station names as String.compareTo does, straight from their UTF-8 bytes.
+// Each name is packed into a long key, its leading bytes above its index, and the keys are sorted
+// as plain longs in parallel. Names whose packed leading bytes tie are sorted again on their next bytes.
+final class StationSort {
+
+    // RANK maps each byte to its place in the order. UTF-8 bytes order by code point, which only differs
+    // from the UTF-16 order of String.compareTo where a character from U+E000 to U+FFFF, lead byte EE or EF,
+    // meets a supplementary character, lead byte F0 to F4, whose surrogates sort below U+E000.
+    // Moving those lead bytes past each other leaves a plain unsigned byte order.
+    private static final int[] RANK = new int[256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            RANK[b] = b;
+        }
+        RANK[0xEE] = 0xF3;
+        RANK[0xEF] = 0xF4;
+        for (int b = 0xF0; b <= 0xF4; b++) {
+            RANK[b] = b - 2;
+        }
+    }
+
+    // Runs this short are sorted by comparing whole names
+    private static final int INSERTION_SORT = 16;
+
+    private StationSort() {}
+
+    // sort returns the indexes of the names in sorted order.
+    static int[] sort(final long[] addresses, final int[] lengths) {
+        final int[] order = new int[addresses.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        sort(order, 0, order.length, 0, addresses, lengths);
+        return order;
+    }
+
+    // sort orders the names from and to the indexes of the order, which share their first depth bytes, on the packed
+    // bytes from the depth on. Each run whose packed bytes tie shares every byte above the index too, and is sorted
+    // the same way from the bytes after them, so names with a long common prefix take a few passes rather than
+    // comparing each with the rest.
+    private static void sort(final int[] order, final int from, final int to, final int depth,
+                             final long[] addresses, final int[] lengths) {
+        final int n = to - from;
+        if (n <= INSERTION_SORT) {
+            insertionSort(order, from, to, addresses, lengths);
+            return;
+        }
+        final int indexBits = 32 - Integer.numberOfLeadingZeros(n - 1);
+        final long indexMask = (1L << indexBits) - 1;
+
+        // The sign bit is flipped so the signed sort orders the leading bytes unsigned
+        final long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            final int index = order[from + i];
+            keys[i] = ((prefix(addresses[index] + depth, Math.max(0, lengths[index] - depth)) & ~indexMask) | i) ^ Long.MIN_VALUE;
+        }
+        Arrays.parallelSort(keys);
+
+        final int[] run = Arrays.copyOfRange(order, from, to);
+        for (int i = 0; i < n; i++) {
+            order[from + i] = run[(int) (keys[i] & indexMask)];
+        }
+
+        final int next = depth + (64 - indexBits) / 8;
+        int start = 0;
+        for (int i = 1; i <= n; i++) {
+            if (i == n || (keys[i] & ~indexMask) != (keys[start] & ~indexMask)) {
+                if (i - start > 1) {
+                    sort(order, from + start, from + i, next, addresses, lengths);
+                }
+                start = i;
+            }
+        }
+    }
+
+    // prefix returns the ranks of the first 8 bytes of the name, big endian and zero padded.
+    // No name contains a zero byte, so a name sorts before any longer name it begins.
+    private static long prefix(final long address, final int length) {
+        long prefix = 0;
+        final int bytes = Math.min(8, length);
+        for (int i = 0; i < bytes; i++) {
+            prefix = (prefix << 8) | RANK[UNSAFE.getByte(address + i) & 0xFF];
+        }
+        return bytes == 0 ? 0 : prefix << ((8 - bytes) << 3);
+    }
+
+    private static void insertionSort(final int[] order, final int from, final int to,
+                                      final long[] addresses, final int[] lengths) {
+        for (int i = from + 1; i < to; i++) {
+            final int index = order[i];
+            int j = i - 1;
+            while (j >= from && compare(addresses[order[j]], lengths[order[j]], addresses[index], lengths[index]) > 0) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = index;
+        }
+    }
+
+    // compare compares two names by rank, byte by byte.
+    static int compare(final long a, final int aLength, final long b, final int bLength) {
+        final int length = Math.min(aLength, bLength);
+        for (int i = 0; i < length; i++) {
+            final int x = RANK[UNSAFE.getByte(a + i) & 0xFF];
+            final int y = RANK[UNSAFE.getByte(b + i) & 0xFF];
+            if (x != y) {
+                return x - y;
+            }
+        }
+        return aLength - bLength;
+    }
+
+}
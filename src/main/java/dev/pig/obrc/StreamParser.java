@@ -0,0 +1,171 @@
+package dev.pig.obrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static dev.pig.obrc.Memory.UNSAFE;
+
+// StreamParser parses input that can only be read front to back, such as a pipe or an inflating gzip stream.
+// The calling thread fills a fixed ring of direct buffers from the source and hands them to the parser
+// threads over a bounded queue, so memory stays at the ring size however long the input is.
+// Each buffer handed over ends on a line end, the partial line after it is carried to the next buffer.
+final class StreamParser {
+
+    // Room past the end of each buffer for the 8 byte reads of the kernel and a closing new line
+    private static final int PADDING = 64;
+
+    // Largest buffer, a direct buffer is indexed by int
+    private static final int MAX_BUFFER_SIZE = 1 << 30;
+
+    // How long the reader waits for a free buffer before checking whether a worker has failed, in milliseconds
+    private static final long POLL_INTERVAL = 100;
+
+    // Marks the end of the input on the queue of filled buffers
+    private static final Buffer END = new Buffer(null, 0);
+
+    // Source fills a buffer with the next bytes of the input, returning -1 at the end.
+    interface Source {
+        int read(ByteBuffer buffer) throws IOException;
+    }
+
+    private StreamParser() {}
+
+    // parse reads the source to the end, parsing it on the worker threads, and returns a map per worker.
+    // Buffers are the segment size, up to MAX_BUFFER_SIZE.
+    static List<StationArrayMap> parse(final Source source, final long segmentSize) throws IOException {
+        final int bufferSize = (int) Math.min(segmentSize, MAX_BUFFER_SIZE);
+        final int workerCount = Math.max(1, CalculateAverage.WORKERS);
+        final int bufferCount = workerCount * 2;
+
+        final BlockingQueue<Buffer> free = new ArrayBlockingQueue<>(bufferCount);
+        final BlockingQueue<Buffer> filled = new ArrayBlockingQueue<>(bufferCount + 1);
+        final Arena arena = Arena.ofAuto();
+        for (int i = 0; i < bufferCount; i++) {
+            free.add(new Buffer(arena.allocate(bufferSize + PADDING, 8), bufferSize));
+        }
+
+        final List<Future<StationArrayMap>> futures = new ArrayList<>(workerCount);
+        try (final ExecutorService pool = Executors.newFixedThreadPool(workerCount)) {
+            for (int i = 0; i < workerCount; i++) {
+                futures.add(pool.submit(() -> {
+                    // Buffers are refilled, so names are copied out of them
+                    final StationArrayMap stations = new StationArrayMap(8192, true);
+                    Buffer buffer;
+                    while ((buffer = filled.take()) != END) {
+                        final long address = buffer.segment.address();
+                        CalculateAverage.process(stations, address, address + buffer.length);
+                        free.put(buffer);
+                    }
+                    // Leave the marker for the other workers
+                    filled.put(END);
+                    return stations;
+                }));
+            }
+
+            try {
+                read(source, free, filled, futures);
+            } finally {
+                filled.put(END);
+            }
+
+            final List<StationArrayMap> maps = new ArrayList<>(workerCount);
+            for (final Future<StationArrayMap> future : futures) {
+                maps.add(future.get());
+            }
+            return maps;
+        } catch (final InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // read fills buffers from the source and queues them, cut at their last line end.
+    private static void read(final Source source, final BlockingQueue<Buffer> free, final BlockingQueue<Buffer> filled,
+                             final List<Future<StationArrayMap>> workers)
+            throws IOException, InterruptedException, ExecutionException {
+        Buffer buffer = take(free, workers);
+        int carried = 0;
+
+        while (true) {
+            final ByteBuffer view = buffer.view.clear().position(carried);
+            boolean end = false;
+            while (view.hasRemaining()) {
+                if (source.read(view) < 0) {
+                    end = true;
+                    break;
+                }
+            }
+            final int length = view.position();
+            final long address = buffer.segment.address();
+
+            if (end) {
+                // Close an unterminated last line, the padding leaves room for it
+                if (length > 0) {
+                    buffer.length = length;
+                    if (UNSAFE.getByte(address + length - 1) != '\n') {
+                        UNSAFE.putByte(address + length, (byte) '\n');
+                        buffer.length++;
+                    }
+                    filled.put(buffer);
+                }
+                return;
+            }
+
+            int lineEnd = length;
+            while (lineEnd > 0 && UNSAFE.getByte(address + lineEnd - 1) != '\n') {
+                lineEnd--;
+            }
+            if (lineEnd == 0) {
+                throw new IllegalStateException("Line longer than the stream buffer of " + view.capacity() + " bytes");
+            }
+
+            final Buffer next = take(free, workers);
+            carried = length - lineEnd;
+            UNSAFE.copyMemory(address + lineEnd, next.segment.address(), carried);
+
+            buffer.length = lineEnd;
+            filled.put(buffer);
+            buffer = next;
+        }
+    }
+
+    // take returns the next free buffer once a worker hands one back. Workers only return after the end of the input,
+    // so one that is done before has failed, its failure is thrown rather than waiting for a buffer that never comes.
+    private static Buffer take(final BlockingQueue<Buffer> free, final List<Future<StationArrayMap>> workers)
+            throws InterruptedException, ExecutionException {
+        Buffer buffer;
+        while ((buffer = free.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS)) == null) {
+            for (final Future<StationArrayMap> worker : workers) {
+                if (worker.isDone()) {
+                    worker.get();
+                    throw new IllegalStateException("Stream worker returned before the end of the input");
+                }
+            }
+        }
+        return buffer;
+    }
+
+    // Buffer is a direct buffer of the ring and the length of whole lines it holds once filled.
+    private static final class Buffer {
+
+        private final MemorySegment segment;
+        private final ByteBuffer view;
+        private int length;
+
+        private Buffer(final MemorySegment segment, final int size) {
+            this.segment = segment;
+            this.view = segment == null ? null : segment.asSlice(0, size).asByteBuffer();
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package dev.pig.obrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+import static dev.pig.obrc.Memory.UNSAFE;
+
+// Tail follows a measurements file that is being appended to. Every poll only the complete lines
+// past the last processed offset are mapped and parsed, merged into running totals that own their
+// names, and the mapping released again. Old data is never rescanned.
+final class Tail {
+
+    private Tail() {}
+
+    // follow polls the file every interval in milliseconds, publishing the sorted result whenever it changed.
+    // If the file shrinks it was rewritten, and the totals are rebuilt from the start.
+    static void follow(final String input, final long interval, final Consumer<String> publisher)
+            throws IOException, InterruptedException {
+
+        try (final FileChannel channel = FileChannel.open(Path.of(input), StandardOpenOption.READ)) {
+            StationArrayMap totals = new StationArrayMap(8192, true);
+            long offset = 0;
+            boolean published = false;
+            // Reused for every result, its buffer only grows with the number of stations
+            final ResultWriter writer = new ResultWriter();
+
+            while (true) {
+                final long size = channel.size();
+                if (size < offset) {
+                    totals = new StationArrayMap(8192, true);
+                    offset = 0;
+                }
+
+                final long processed = process(channel, offset, size, totals);
+                if (processed != offset || !published) {
+                    offset = processed;
+                    publisher.accept(writer.format(totals));
+                    published = true;
+                }
+
+                Thread.sleep(interval);
+            }
+        }
+    }
+
+    // process parses the complete lines between the offset and the size into the totals,
+    // returning the offset after the last complete line.
+    private static long process(final FileChannel channel, final long offset, final long size,
+                                final StationArrayMap totals) throws IOException {
+        if (size == offset) {
+            return offset;
+        }
+
+        try (final Arena arena = Arena.ofShared()) {
+            final long base = channel.map(FileChannel.MapMode.READ_ONLY, offset, size - offset, arena).address();
+
+            // The last line may still be being written, stop after the last new line
+            long end = base + (size - offset);
+            while (end > base && UNSAFE.getByte(end - 1) != '\n') {
+                end--;
+            }
+
+            totals.merge(CalculateAverage.merge(CalculateAverage.schedule(base, end - base)));
+            return offset + (end - base);
+        }
+    }
+
+}
@@ -0,0 +1,131 @@
+package dev.pig.obrc;
+
+import sun.misc.Unsafe;
+
+import static dev.pig.obrc.Memory.UNSAFE;
+
+// TemperatureDecoder parses a reading - can be negative, 1 or 2 integer digits, 1 DP - followed by a new line.
+// Only one implementation is loaded per run, so the call site stays monomorphic and is inlined.
+// Decoders trust the layout, wellFormed checks the reading against it afterwards.
+interface TemperatureDecoder {
+
+    // decode parses the reading at the address and returns the temperature in tenths in the low 32 bits
+    // and the number of bytes up to the start of the next line in the high 32 bits.
+    long decode(long address);
+
+    static TemperatureDecoder of(final String name) {
+        return switch (name) {
+            case "scalar" -> new Scalar();
+            case "swar" -> new Swar();
+            default -> throw new IllegalArgumentException("Unknown temperature decoder: " + name);
+        };
+    }
+
+    static long pack(final int temp, final long length) {
+        return (length << 32) | (temp & 0xFFFFFFFFL);
+    }
+
+    // wellFormed returns whether the 8 bytes from the start of a reading hold a well formed reading of the length
+    // it was decoded with, followed by a new line.
+    static boolean wellFormed(final long word, final long length) {
+        final long checks = checks(word, length);
+        return matches(word, UNSAFE.getLong(LAYOUTS, checks), UNSAFE.getLong(LAYOUTS, checks + 8), UNSAFE.getLong(LAYOUTS, checks + 16));
+    }
+
+    // wellFormedCrlf returns whether the bytes hold a well formed reading followed by a carriage return and new line.
+    static boolean wellFormedCrlf(final long word, final long length) {
+        final long checks = checks(word, length);
+        return matches(word, UNSAFE.getLong(LAYOUTS, checks + 32), UNSAFE.getLong(LAYOUTS, checks + 40), UNSAFE.getLong(LAYOUTS, checks + 48));
+    }
+
+    // checks returns the offset in LAYOUTS of the checks for the length, read without bounds checks as they are on the
+    // hot path. A '-' has bit 4 clear as does anything else that is not a digit and fails the check.
+    private static long checks(final long word, final long length) {
+        return Unsafe.ARRAY_LONG_BASE_OFFSET + ((length & 7) << 6 | (~word << 5) & 0x200);
+    }
+
+    // Checks of wellFormed and wellFormedCrlf by length, plus 8 if negative. Each is the pattern of a well formed
+    // reading followed by a new line, with '0' for every digit, the mask of its bytes and the addend of each byte,
+    // then the same followed by a carriage return and new line. Lengths a well formed reading cannot have never match.
+    long[] LAYOUTS = layouts();
+
+    private static long[] layouts() {
+        final long[] layouts = new long[16 * 8];
+        for (int i = 0; i < 16; i++) {
+            final int length = i & 7;
+            final boolean negative = i >= 8;
+            final int integers = length - 3 - (negative ? 1 : 0);
+            if (integers != 1 && integers != 2) {
+                // Every byte carries into its high bit
+                layouts[i * 8 + 2] = layouts[i * 8 + 6] = 0x8080808080808080L;
+                continue;
+            }
+            final String reading = (negative ? "-" : "") + "0".repeat(integers) + ".0";
+            for (int j = 0; j < 2; j++) {
+                final String line = reading + (j == 0 ? "\n" : "\r\n");
+                for (int b = 0; b < line.length(); b++) {
+                    layouts[i * 8 + j * 4] |= (long) line.charAt(b) << (b << 3);
+                    layouts[i * 8 + j * 4 + 1] |= 0xFFL << (b << 3);
+                    layouts[i * 8 + j * 4 + 2] |= (line.charAt(b) == '0' ? 0x76L : 0x7FL) << (b << 3);
+                }
+            }
+        }
+        return layouts;
+    }
+
+    // matches returns whether the bytes of the word within the mask match the pattern. XOR leaves 0 to 9 in a digit
+    // and 0 in any other byte that matches, the addend of 0x76 or 0x7F carries anything larger into the high bit.
+    private static boolean matches(final long word, final long pattern, final long mask, final long addend) {
+        final long bytes = (word ^ pattern) & mask;
+        return ((bytes | (bytes + addend)) & 0x8080808080808080L) == 0;
+    }
+
+    // Scalar reads the sign and digits byte by byte, selecting the layout without branches.
+    final class Scalar implements TemperatureDecoder {
+
+        @Override
+        public long decode(final long address) {
+            // Check if first character is (1 for negative, 0 for positive)
+            final int negative = ~(UNSAFE.getByte(address) >> 4) & 1;
+            // Check how many integer digits there are (1 for 2 digits, 0 for 1 digit)
+            final int isThree = ~(UNSAFE.getByte(address + negative + 2) >> 4) & 1;
+
+            // Find the 3 digits (if there are only 2, d1 == d2)
+            final int d1 = UNSAFE.getByte(address + negative) - 48;
+            final int d2 = UNSAFE.getByte(address + negative + isThree);
+            final int d3 = UNSAFE.getByte(address + negative + isThree + 2);
+
+            // Calculate temp from 3 digits
+            final int temp = -negative ^ (d1*100*isThree + d2*10 + d3 - 528) - negative;
+
+            return pack(temp, negative + isThree + 4);
+        }
+    }
+
+    // Swar reads the whole reading with a single 8 byte load. Of the second to fourth bytes only the
+    // decimal point has bit 4 clear, which locates it, the digits are then shifted into fixed
+    // positions and combined into the value with one multiply.
+    final class Swar implements TemperatureDecoder {
+
+        @Override
+        public long decode(final long address) {
+            final long word = UNSAFE.getLong(address);
+
+            // Bit position of the decimal point, 12 for d.d, 20 for dd.d or -d.d and 28 for -dd.d
+            final int dot = Long.numberOfTrailingZeros(~word & 0x10101000L);
+
+            // All ones if negative, the '-' byte has bit 4 clear
+            final long signed = (~word << 59) >> 63;
+
+            // Drop the sign and shift the digits into fixed bytes, tens at byte 1, ones at 2 and tenths at 4
+            final long digits = ((word & ~(signed & 0xFF)) << (28 - dot)) & 0x0F000F0F00L;
+
+            // 100 * tens + 10 * ones + tenths lands in bits 32-41
+            final long abs = ((digits * 0x640a0001L) >>> 32) & 0x3FF;
+            final int temp = (int) ((abs ^ signed) - signed);
+
+            return pack(temp, (dot >>> 3) + 3);
+        }
+    }
+
+}
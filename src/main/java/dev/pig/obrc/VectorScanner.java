@@ -0,0 +1,114 @@
+package dev.pig.obrc;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+
+import static dev.pig.obrc.Memory.UNSAFE;
+
+// VectorScanner finds the delimiters of a whole block of lines with a single vector load per block.
+// Each block is compared against ';' and '\n' and the results kept as bit masks, so every line within
+// the block is resolved with bit operations alone. Only loaded when jdk.incubator.vector is present.
+final class VectorScanner {
+
+    // Widest species the CPU supports, 64 bytes on AVX-512 and 32 bytes on AVX2
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED.vectorBitSize() >= 512
+            ? ByteVector.SPECIES_512
+            : ByteVector.SPECIES_256;
+    private static final int WIDTH = SPECIES.length();
+
+    // Anything narrower than 256 bits is no faster than the 8 byte SWAR scan
+    static final boolean SUPPORTED = ByteVector.SPECIES_PREFERRED.vectorBitSize() >= 256;
+
+    // Vector loads take a segment, so raw addresses are read through one covering all memory
+    private static final MemorySegment ALL = MemorySegment.NULL.reinterpret(Long.MAX_VALUE);
+
+    private VectorScanner() {}
+
+    // processChunk process the memory between the two addresses into the map of station readings.
+    // Lines whose block would need a load past the fast path's end are handed to the SWAR scan,
+    // those after it to the careful parser.
+    static void processChunk(final StationArrayMap stations, final long start, final long end) {
+        final long fastEnd = CalculateAverage.fastEnd(start, end);
+        processLines(stations, start, fastEnd);
+        CarefulParser.processChunk(stations, fastEnd, end);
+    }
+
+    private static void processLines(final StationArrayMap stations, long address, final long end) {
+
+        long block = address - WIDTH;
+        long semicolons = 0L;
+        long newlines = 0L;
+
+        while (address < end) {
+
+            // Mark the start of the line
+            final long lineStart = address;
+
+            // Find the semicolon, loading the following blocks until one is seen. A new line left in the
+            // block without one ends a line without a semicolon, which is taken as past the block.
+            while (semicolons == 0 && newlines == 0) {
+                block += WIDTH;
+                if (block + WIDTH > end) {
+                    CalculateAverage.processLines(stations, lineStart, end);
+                    return;
+                }
+                final ByteVector v = ByteVector.fromMemorySegment(SPECIES, ALL, block, ByteOrder.LITTLE_ENDIAN);
+                semicolons = v.eq((byte) ';').toLong();
+                newlines = v.eq((byte) '\n').toLong();
+            }
+            final long semicolon = block + Long.numberOfTrailingZeros(semicolons);
+            semicolons &= semicolons - 1;
+
+            // Find the new line, it may sit in the following block
+            while (newlines == 0) {
+                block += WIDTH;
+                if (block + WIDTH > end) {
+                    CalculateAverage.processLines(stations, lineStart, end);
+                    return;
+                }
+                final ByteVector v = ByteVector.fromMemorySegment(SPECIES, ALL, block, ByteOrder.LITTLE_ENDIAN);
+                semicolons = v.eq((byte) ';').toLong();
+                newlines = v.eq((byte) '\n').toLong();
+            }
+            final long newline = block + Long.numberOfTrailingZeros(newlines);
+            newlines &= newlines - 1;
+
+            // Grab the first 16 bytes of the name inline, zeroing anything past the semicolon
+            final int length = (int) (semicolon - lineStart);
+            long name0 = UNSAFE.getLong(lineStart);
+            long name1 = UNSAFE.getLong(lineStart + 8);
+            if (length < 16) {
+                name0 &= StationArrayMap.mask(length);
+                name1 &= StationArrayMap.mask(length - 8);
+            }
+
+            // Parse the temperature, the line end is already known from the new line mask. Checking the
+            // reading ends just before it also catches a line without a semicolon, whose semicolon lies
+            // past its new line. The careful parser takes any line that is not well formed, or whose
+            // name the map refuses, and the masks are reloaded from the next as they may be out of step.
+            final long reading = CalculateAverage.DECODER.decode(semicolon + 1);
+            final long word = UNSAFE.getLong(semicolon + 1);
+            final int hash = CalculateAverage.hash(lineStart, length, name0, name1);
+            final boolean added = semicolon + (reading >>> 32) == newline
+                    ? TemperatureDecoder.wellFormed(word, reading >>> 32)
+                    && stations.add(lineStart, length, hash, name0, name1, (int) reading)
+                    : semicolon + (reading >>> 32) + 1 == newline
+                    && TemperatureDecoder.wellFormedCrlf(word, reading >>> 32)
+                    && stations.add(lineStart, length, hash, name0, name1, (int) reading);
+            if (!added) {
+                address = CarefulParser.processLine(stations, lineStart, end);
+                block = address - WIDTH;
+                semicolons = 0L;
+                newlines = 0L;
+                continue;
+            }
+
+            // Progress head to next line start
+            address = newline + 1;
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+package dev.pig.obrc.pipeline;
+
+import dev.pig.obrc.CalculateAverage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// PrefetchBenchmark compares the wall time and page faults of aggregating the input with and without
+// obrc.madvise. Each run is a separate launch, since the option is read once per process, which runs
+// probe: it aggregates the input in process and prints the time and the faults it took, from /proc/self/stat.
+// Cold runs drop the page cache before every launch, which needs root.
+public class PrefetchBenchmark {
+
+    private static final String INPUT = "./measurements.txt";
+
+    private static final int RUNS = 3;
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length >= 2 && args[0].equals("probe")) {
+            probe(args[1]);
+            return;
+        }
+        run(args.length >= 1 ? args[0] : INPUT, args.length >= 2 && args[1].equals("cold"));
+    }
+
+    public static void run(final String input, final boolean cold) throws Exception {
+        System.out.printf("%-10s %10s %14s %14s%n", "madvise", "Wall", "Minor faults", "Major faults");
+        for (final boolean madvise : new boolean[]{false, true}) {
+            for (int i = 0; i < RUNS; i++) {
+                if (cold) {
+                    dropCaches();
+                }
+                final String[] probe = launch(input, madvise).trim().split(" ");
+                System.out.printf("%-10s %8.1fms %,14d %,14d%n", madvise,
+                        Long.parseLong(probe[0]) / 1e6, Long.parseLong(probe[1]), Long.parseLong(probe[2]));
+            }
+        }
+    }
+
+    private static void dropCaches() throws IOException, InterruptedException {
+        new ProcessBuilder("sync").inheritIO().start().waitFor();
+        Files.writeString(Path.of("/proc/sys/vm/drop_caches"), "3");
+    }
+
+    // launch runs probe in a new process with the option set and returns what it printed.
+    private static String launch(final String input, final boolean madvise) throws IOException, InterruptedException {
+        final ProcessHandle.Info info = ProcessHandle.current().info();
+        final List<String> command = new ArrayList<>();
+        command.add(info.command().orElseThrow());
+        command.addAll(List.of("--enable-preview", "--enable-native-access=ALL-UNNAMED", "-Dobrc.madvise=" + madvise,
+                "-cp", System.getProperty("java.class.path"), PrefetchBenchmark.class.getName(), "probe", input));
+
+        final Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        final String output = new String(process.getInputStream().readAllBytes());
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("Probe failed: " + String.join(" ", command));
+        }
+        return output;
+    }
+
+    // probe prints the nanoseconds, minor faults and major faults taken to aggregate the input.
+    private static void probe(final String input) throws IOException {
+        final long[] before = faults();
+        final long start = System.nanoTime();
+        CalculateAverage.run(input);
+        final long elapsed = System.nanoTime() - start;
+        final long[] after = faults();
+        System.out.printf("%d %d %d%n", elapsed, after[0] - before[0], after[1] - before[1]);
+    }
+
+    // faults returns the minor and major page faults of this process so far, fields 10 and 12 of /proc/self/stat.
+    private static long[] faults() throws IOException {
+        final String stat = Files.readString(Path.of("/proc/self/stat"));
+        // Fields are counted after the command name, which may hold spaces
+        final String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+        return new long[]{Long.parseLong(fields[7]), Long.parseLong(fields[9])};
+    }
+
+}
@@ -0,0 +1,118 @@
+package dev.pig.obrc.pipeline;
+
+import dev.pig.obrc.CalculateAverage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.spi.ToolProvider;
+
+// StartupBenchmark times whole launches of CalculateAverage, from starting the process to reading the last
+// byte of its output, so JVM startup, class loading and warmup are counted along with the aggregation.
+// Each input is run with the default launch and with the startup launch, which only adds loading the engine
+// classes from an AppCDS archive made by a training run.
+public class StartupBenchmark {
+
+    private static final String[] INPUTS = {"./measurements_1mb.txt", "./measurements_100mb.txt", "./measurements_1gb.txt"};
+    private static final long[] SIZES = {1L << 20, 100L << 20, 1L << 30};
+
+    // Average bytes per generated line, to size the inputs
+    private static final int LINE_SIZE = 14;
+
+    private static final String JAR = "./target/obrc-startup.jar";
+    private static final String ARCHIVE = "./target/obrc.jsa";
+
+    private static final int RUNS = 5;
+
+    public static void main(final String[] args) throws Exception {
+        run();
+    }
+
+    public static void run() throws Exception {
+        for (int i = 0; i < INPUTS.length; i++) {
+            Generate.createMeasurementsIfNotExists((int) (SIZES[i] / LINE_SIZE), Path.of(INPUTS[i]));
+        }
+
+        // Archives can only hold classes loaded from jars
+        final Path jar = jar();
+        final Path archive = Path.of(ARCHIVE);
+        System.out.println("Training run, dumping the AppCDS archive...");
+        Files.deleteIfExists(archive);
+        launch(command(jar, List.of("-XX:ArchiveClassesAtExit=" + archive), INPUTS[0]));
+
+        final List<String> defaultFlags = List.of();
+        final List<String> startupFlags = List.of("-XX:SharedArchiveFile=" + archive);
+
+        System.out.printf("%-26s %12s %12s %9s%n", "Input", "Default", "Startup", "Saved");
+        for (final String input : INPUTS) {
+            final long baseline = best(command(jar, defaultFlags, input));
+            final long startup = best(command(jar, startupFlags, input));
+            System.out.printf("%-26s %10.1fms %10.1fms %8.1f%%%n", input, baseline / 1e6, startup / 1e6,
+                    100.0 * (baseline - startup) / baseline);
+        }
+    }
+
+    // jar returns a jar of the classes CalculateAverage was loaded from, building it if they are a directory.
+    private static Path jar() throws IOException, URISyntaxException {
+        final Path classes = Path.of(CalculateAverage.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        if (!Files.isDirectory(classes)) {
+            return classes;
+        }
+
+        final Path jar = Path.of(JAR);
+        Files.deleteIfExists(jar);
+        final ToolProvider tool = ToolProvider.findFirst("jar").orElseThrow();
+        if (tool.run(System.out, System.err, "cf", jar.toString(), "-C", classes.toString(), ".") != 0) {
+            throw new IllegalStateException("Failed to build " + jar);
+        }
+        return jar;
+    }
+
+    private static List<String> command(final Path jar, final List<String> flags, final String input) {
+        final List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElseThrow());
+        command.add("--enable-preview");
+        command.add("--enable-native-access=ALL-UNNAMED");
+        command.addAll(List.of("--add-modules", "jdk.incubator.vector"));
+        command.addAll(flags);
+        command.addAll(List.of("-cp", jar.toString(), CalculateAverage.class.getName(), input));
+        return command;
+    }
+
+    // best returns the shortest of the timed launches, after one untimed launch to warm the page cache.
+    private static long best(final List<String> command) throws IOException, InterruptedException {
+        launch(command);
+        final long[] times = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            times[i] = launch(command);
+        }
+        return Arrays.stream(times).min().orElseThrow();
+    }
+
+    // launch returns the nanoseconds from starting the command to reading the last byte of its output.
+    private static long launch(final List<String> command) throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        final Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+
+        // Timed at the last read that returned bytes, not at the end of the stream, which waits for JVM exit
+        long last = start;
+        try (final InputStream output = process.getInputStream()) {
+            final byte[] buffer = new byte[64 * 1024];
+            while (output.read(buffer) >= 0) {
+                last = System.nanoTime();
+            }
+        }
+        final long elapsed = last - start;
+
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("Launch failed: " + String.join(" ", command));
+        }
+        return elapsed;
+    }
+
+}
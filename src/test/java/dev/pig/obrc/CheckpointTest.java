@@ -0,0 +1,59 @@
+package dev.pig.obrc;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CheckpointTest {
+
+    @Test
+    void keepsNamesThatAreNotUtf8Apart() throws IOException {
+        // Both decode to the same replacement character
+        final byte[][] names = {{'A', 'b', (byte) 0xFF, 'c'}, {'A', 'b', (byte) 0xFE, 'c'}, "Z\u00fcrich".getBytes(StandardCharsets.UTF_8)};
+
+        final StationArrayMap stations = new StationArrayMap(16, true);
+        try (final Arena arena = Arena.ofConfined()) {
+            final MemorySegment scratch = arena.allocate(32);
+            for (int i = 0; i < names.length; i++) {
+                scratch.fill((byte) 0);
+                MemorySegment.copy(names[i], 0, scratch, ValueLayout.JAVA_BYTE, 0, names[i].length);
+                stations.merge(scratch.address(), names[i].length, new Station(1, 10 * (i + 1), 10 * (i + 1), 10 * (i + 1), null));
+            }
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final DataOutputStream out = new DataOutputStream(bytes)) {
+            Checkpoint.writeStations(out, stations);
+        }
+        final StationArrayMap read = Checkpoint.readStations(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), stations.size(), false);
+
+        assertEquals(sums(stations), sums(read));
+        assertEquals(Map.of("4162ff63", 10L, "4162fe63", 20L, "5ac3bc72696368", 30L), sums(read));
+    }
+
+    // sums returns the sum of each station by the hex of its name bytes.
+    private static Map<String, Long> sums(final StationArrayMap stations) {
+        final Map<String, Long> sums = new TreeMap<>();
+        stations.forEachEntry((address, length, count, sum, min, max, quantiles) -> {
+            final byte[] name = new byte[length];
+            MemorySegment.copy(MemorySegment.ofAddress(address).reinterpret(length), ValueLayout.JAVA_BYTE, 0, name, 0, length);
+            sums.put(HexFormat.of().formatHex(name), sum);
+        });
+        return sums;
+    }
+
+}
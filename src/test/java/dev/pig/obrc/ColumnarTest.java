@@ -0,0 +1,90 @@
+package dev.pig.obrc;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ColumnarTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void convertsDirtyInput() throws IOException {
+        final Path text = this.write("dirty.txt",
+                "Hamburg;12.0\r\nbad line\nZürich;-3.4\n;1.0\n\nAbéché;5\nOslo;abc\nHamburg;8");
+
+        assertEquals("{Abéché=5.0/5.0/5.0, Hamburg=8.0/10.0/12.0, Zürich=-3.4/-3.4/-3.4}", this.convertAndRun(text));
+    }
+
+    @Test
+    void convertsCrlfInputEndingOnAPage() throws IOException {
+        // Ends on a page boundary without a new line, a read past the end of the mapping would fault
+        final ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        for (int i = 0; lines.size() < 4000; i++) {
+            lines.writeBytes(("Station" + (i % 37) + ";" + (i % 199 - 99) + "." + (i % 10) + "\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+        final byte[] last = "Last;1.5".getBytes(StandardCharsets.UTF_8);
+        lines.writeBytes("x".repeat(4096 - lines.size() - last.length - 2).getBytes(StandardCharsets.UTF_8));
+        lines.writeBytes(";\n".getBytes(StandardCharsets.UTF_8));
+        lines.writeBytes(last);
+        final Path text = this.dir.resolve("crlf.txt");
+        Files.write(text, lines.toByteArray());
+        assertEquals(4096, Files.size(text));
+
+        assertEquals(CalculateAverage.run(text.toString()), this.convertAndRun(text));
+    }
+
+    @Test
+    void convertsNamesThatAreNotUtf8() throws IOException {
+        // Both names decode to the same replacement character, the dictionary must keep them apart
+        final Path text = this.dir.resolve("bytes.txt");
+        Files.write(text, new byte[]{'A', 'b', (byte) 0xFF, 'c', ';', '1', '.', '0', '\n', 'A', 'b', (byte) 0xFE, 'c', ';', '2', '.', '0', '\n'});
+
+        final String result = this.convertAndRun(text);
+        assertEquals(CalculateAverage.run(text.toString()), result);
+        assertEquals(2, result.split(", ").length);
+        assertEquals(List.of("bytes.txt", "bytes.txt.obrc"), this.files());
+    }
+
+    @Test
+    void rejectsIncompleteFile() throws IOException {
+        final Path text = this.write("text.txt", "Hamburg;12.0\nZ\u00fcrich;-3.4\nHamburg;8.0\n");
+        final Path columnar = this.dir.resolve("text.obrc");
+        Columnar.convert(text, columnar);
+
+        final byte[] bytes = Files.readAllBytes(columnar);
+        for (final int cut : new int[]{8, 16, bytes.length / 2}) {
+            final Path truncated = Files.write(this.dir.resolve("truncated.obrc"), Arrays.copyOf(bytes, bytes.length - cut));
+            assertThrows(IllegalArgumentException.class, () -> CalculateAverage.run(truncated.toString()));
+        }
+    }
+
+    private List<String> files() throws IOException {
+        try (final Stream<Path> files = Files.list(this.dir)) {
+            return files.map(file -> file.getFileName().toString()).sorted().toList();
+        }
+    }
+
+    private String convertAndRun(final Path text) throws IOException {
+        final Path columnar = this.dir.resolve(text.getFileName() + ".obrc");
+        Columnar.convert(text, columnar);
+        return CalculateAverage.run(columnar.toString());
+    }
+
+    private Path write(final String name, final String content) throws IOException {
+        return Files.writeString(this.dir.resolve(name), content, StandardCharsets.UTF_8);
+    }
+
+}
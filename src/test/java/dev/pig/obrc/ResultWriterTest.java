@@ -0,0 +1,45 @@
+package dev.pig.obrc;
+
+import dev.pig.obrc.pipeline.Calculate_baseline;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ResultWriterTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void roundsTiedMeansAsTheBaseline() throws IOException {
+        // Six readings summing to -32.1, a mean of exactly -5.35
+        final StringBuilder lines = new StringBuilder("Acharipallam;-5.0\nAcharipallam;-5.0\nAcharipallam;-5.0\n"
+                + "Acharipallam;-5.0\nAcharipallam;-6.0\nAcharipallam;-6.1\n");
+
+        // Every sum of up to 20 readings whose mean falls exactly halfway between two tenths
+        for (int count = 2; count <= 20; count++) {
+            for (int sum = -400; sum <= 400; sum++) {
+                if (2 * sum % count != 0 || (2 * sum / count) % 2 == 0) {
+                    continue;
+                }
+                final int low = Math.floorDiv(sum, count);
+                for (int i = 0; i < count; i++) {
+                    final int tenths = i < sum - low * count ? low + 1 : low;
+                    lines.append("Tie ").append(count).append(' ').append(sum).append(';')
+                            .append(tenths < 0 ? "-" : "").append(Math.abs(tenths) / 10).append('.').append(Math.abs(tenths) % 10)
+                            .append('\n');
+                }
+            }
+        }
+        final Path input = Files.writeString(this.dir.resolve("ties.txt"), lines, StandardCharsets.UTF_8);
+
+        assertEquals(Calculate_baseline.run(input.toString()), CalculateAverage.run(input.toString()));
+    }
+
+}
@@ -0,0 +1,76 @@
+package dev.pig.obrc;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StationSortTest {
+
+    @Test
+    void sortsAsStringCompareTo() {
+        final List<String> names = new ArrayList<>(List.of("Zürich", "Abéché", "Abha", "Ab", "A", "Zurich",
+                "İzmir", "Ürümqi", "\uE000 private", "\uFFFD replaced", "\uD83C\uDF0D globe", "\uD83C\uDF0E globe",
+                "a", "Z", "São Paulo", "Sao Paulo"));
+        for (int i = 0; i < 100; i++) {
+            names.add("Shared prefix station " + (char) ('a' + i % 26) + i);
+        }
+
+        assertSorted(names);
+    }
+
+    @Test
+    @Timeout(30)
+    void sortsManyNamesSharingAPrefix() {
+        final List<String> names = new ArrayList<>();
+        for (int i = 0; i < 200_000; i++) {
+            names.add(String.format("StationName%07d", i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            names.add("StationNameé" + i);
+        }
+
+        assertSorted(names);
+    }
+
+    private static void assertSorted(final List<String> names) {
+        final List<String> shuffled = new ArrayList<>(names);
+        Collections.shuffle(shuffled, new Random(42));
+
+        final byte[][] bytes = new byte[shuffled.size()][];
+        long total = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = shuffled.get(i).getBytes(StandardCharsets.UTF_8);
+            total += bytes[i].length;
+        }
+        final MemorySegment block = Arena.ofAuto().allocate(total);
+        final long[] addresses = new long[bytes.length];
+        final int[] lengths = new int[bytes.length];
+        long offset = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            MemorySegment.copy(bytes[i], 0, block, ValueLayout.JAVA_BYTE, offset, bytes[i].length);
+            addresses[i] = block.address() + offset;
+            lengths[i] = bytes[i].length;
+            offset += bytes[i].length;
+        }
+
+        final List<String> sorted = new ArrayList<>(shuffled.size());
+        for (final int index : StationSort.sort(addresses, lengths)) {
+            sorted.add(shuffled.get(index));
+        }
+
+        final List<String> expected = new ArrayList<>(names);
+        Collections.sort(expected);
+        assertEquals(expected, sorted);
+    }
+
+}